@@ -0,0 +1,79 @@
+package no.systek.dataflow.benchmarks;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import no.systek.dataflow.Step;
+import no.systek.dataflow.Steps;
+import no.systek.dataflow.steps.CollectorStep;
+import no.systek.dataflow.steps.PairJoinStep;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The graph of CappuccinoTest.makeMultipleCappuccino, with the sleeps replaced by a little bit of work, so it
+ * measures the overhead of splitting, collecting, looping and joining
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CappuccinoBenchmark {
+
+    private Step<?, String> cappuccino;
+    private List<String> orders;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Step<List<String>, String> orderSplitter = Steps.newParallelListStep(in -> in);
+        Step<String, String> grindBeans = Steps.newParallel(order -> "coffee for " + order);
+        Step<String, Integer> tapWater = Steps.newParallel(order -> 18);
+        Step<String, String> foamMilk = Steps.newParallel(order -> "milk for " + order);
+
+        CollectorStep<Integer> collector = Steps.newCollector(2);
+        Step<List<Integer>, Integer> heatWater = Steps.newParallelListStep(
+                waters -> waters.stream().map(temperature -> temperature + 40).collect(Collectors.toList()));
+        Steps.SimpleConditionalStep<Integer> hotEnough = Steps.newCondition(temperature -> temperature > 95);
+
+        PairJoinStep<String, Integer, String> brew = Steps.newJoiner(
+                in -> in instanceof String, (coffee, water) -> coffee + " brewed at " + water);
+        PairJoinStep<String, String, String> cappuccino = Steps.newJoiner(
+                in -> ((String) in).contains("brewed"), (coffee, milk) -> coffee + " with " + milk);
+
+        cappuccino.dependsOnLeft(brew.output());
+        cappuccino.dependsOnRight(foamMilk.output());
+
+        brew.dependsOnLeft(grindBeans.output());
+        brew.dependsOnRight(hotEnough.ifTrue());
+
+        hotEnough.dependsOn(heatWater.output());
+        heatWater.dependsOn(collector.output());
+        collector.dependsOn(hotEnough.ifFalse());
+        collector.dependsOn(tapWater.output());
+
+        tapWater.dependsOn(orderSplitter.output());
+        grindBeans.dependsOn(orderSplitter.output());
+        foamMilk.dependsOn(orderSplitter.output());
+
+        this.cappuccino = cappuccino;
+        this.orders = Arrays.asList("order1", "order2", "order3", "order4");
+    }
+
+    @Benchmark
+    public List<String> makeMultipleCappuccino(ExecutorState state) {
+        return state.stepExecutor.executeList(cappuccino, orders);
+    }
+}
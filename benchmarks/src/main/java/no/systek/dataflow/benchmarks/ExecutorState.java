@@ -0,0 +1,41 @@
+package no.systek.dataflow.benchmarks;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import no.systek.dataflow.StepExecutor;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Thread pool and step executor shared by the benchmarks, run with different pool sizes and limits
+ */
+@State(Scope.Benchmark)
+public class ExecutorState {
+
+    @Param({ "1", "4", "16" })
+    public int threads;
+
+    @Param({ "4", "64" })
+    public int maxParallelTasks;
+
+    public ExecutorService executorService;
+    public StepExecutor stepExecutor;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        executorService = Executors.newFixedThreadPool(threads);
+        stepExecutor = new StepExecutor(executorService, s -> {
+        }, () -> null, maxParallelTasks, 60, TimeUnit.SECONDS);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        executorService.shutdown();
+    }
+}
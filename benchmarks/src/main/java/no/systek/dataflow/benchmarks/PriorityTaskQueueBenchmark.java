@@ -0,0 +1,71 @@
+package no.systek.dataflow.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import no.systek.dataflow.PriorityTaskQueue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Raw throughput of adding tasks to the queue and dispatching them to the thread pool, without any steps
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PriorityTaskQueueBenchmark {
+
+    private static final int TASKS = 10_000;
+    private static final int PRODUCERS = 16;
+
+    @Benchmark
+    @OperationsPerInvocation(TASKS)
+    public int addAndDispatchFromCaller(ExecutorState state) {
+        PriorityTaskQueue pq = newQueue(state);
+        AtomicInteger counter = new AtomicInteger();
+        Consumer<PriorityTaskQueue> task = q -> counter.incrementAndGet();
+        for (int i = 0; i < TASKS; i++) {
+            pq.addTask(PriorityTaskQueue.HIGHEST_PRIORITY, task);
+        }
+        execute(state, pq);
+        return counter.get();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TASKS)
+    public int addAndDispatchFromWorkers(ExecutorState state) {
+        PriorityTaskQueue pq = newQueue(state);
+        AtomicInteger counter = new AtomicInteger();
+        Consumer<PriorityTaskQueue> task = q -> counter.incrementAndGet();
+        for (int i = 0; i < PRODUCERS; i++) {
+            pq.addTask(PriorityTaskQueue.HIGHEST_PRIORITY, q -> {
+                for (int j = 0; j < TASKS / PRODUCERS; j++) {
+                    q.addTask(PriorityTaskQueue.HIGHEST_PRIORITY, task);
+                }
+            });
+        }
+        execute(state, pq);
+        return counter.get();
+    }
+
+    private static PriorityTaskQueue newQueue(ExecutorState state) {
+        return new PriorityTaskQueue(state.maxParallelTasks, () -> null, s -> {
+        });
+    }
+
+    private static void execute(ExecutorState state, PriorityTaskQueue pq) {
+        if (!pq.executeTasksAndAwaitDone(state.executorService, e -> {
+        }, 60, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("Timeout");
+        }
+    }
+}
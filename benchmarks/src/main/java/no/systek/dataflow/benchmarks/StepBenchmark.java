@@ -0,0 +1,122 @@
+package no.systek.dataflow.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import no.systek.dataflow.Step;
+import no.systek.dataflow.Steps;
+import no.systek.dataflow.steps.CollectorStep;
+import no.systek.dataflow.steps.PairJoinStep;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput and latency of the step primitives. The graphs are built once per trial and executed for each
+ * invocation.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StepBenchmark {
+
+    private static final int FAN_OUT = 10_000;
+    private static final int PAIRS = 1_000;
+
+    @Param({ "10" })
+    public int chainLength;
+
+    private Step<Integer, Integer> chain;
+    private Step<Integer, Integer> fusedChain;
+    private Step<Integer, Integer> fanOut;
+    private PairJoinStep<Integer, String, Integer> joiner;
+    private Step<List<Integer>, Integer> collected;
+
+    private List<Integer> fanOutInput;
+    private List<Integer> pairsInput;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        // a bounded mailbox keeps a step from being fused with its parent, so each input goes through a mailbox
+        chain = Steps.newSingle(in -> in + 1);
+        for (int i = 1; i < chainLength; i++) {
+            Step<Integer, Integer> next = Steps.newSingle(in -> in + 1);
+            next.setMailboxCapacity(1, Step.OverflowPolicy.BACKPRESSURE);
+            next.dependsOn(chain.output());
+            chain = next;
+        }
+
+        fusedChain = Steps.newSingle(in -> in + 1);
+        for (int i = 1; i < chainLength; i++) {
+            Step<Integer, Integer> next = Steps.newSingle(in -> in + 1);
+            next.dependsOn(fusedChain.output());
+            fusedChain = next;
+        }
+
+        fanOut = Steps.newParallel(in -> in * 2);
+        fanOut.dependsOn(Steps.<Integer, Integer>newParallelListStep(in -> in).output());
+
+        joiner = Steps.newJoiner(in -> in instanceof Integer, (left, right) -> left + right.length());
+        joiner.dependsOnLeft(Steps.<Integer, Integer>newParallelListStep(in -> in).output());
+        joiner.dependsOnRight(Steps.<Integer, String>newParallelListStep(
+                in -> in.stream().map(String::valueOf).collect(Collectors.toList())).output());
+
+        CollectorStep<Integer> collector = Steps.newCollector(Integer.MAX_VALUE);
+        collector.dependsOn(Steps.<Integer, Integer>newParallelListStep(in -> in).output());
+        collected = Steps.newSingle(List::size);
+        collected.dependsOn(collector.output());
+
+        fanOutInput = IntStream.range(0, FAN_OUT).boxed().collect(Collectors.toList());
+        pairsInput = IntStream.range(0, PAIRS).boxed().collect(Collectors.toList());
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Integer singleStepChainLatency(ExecutorState state) {
+        return state.stepExecutor.execute(chain, 0);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Integer fusedChainLatency(ExecutorState state) {
+        return state.stepExecutor.execute(fusedChain, 0);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(FAN_OUT)
+    public List<Integer> wideFanOut(ExecutorState state) {
+        return state.stepExecutor.executeList(fanOut, fanOutInput);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(PAIRS)
+    public List<Integer> pairJoinRate(ExecutorState state) {
+        return state.stepExecutor.executeList(joiner, pairsInput);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Integer collectorFlushLatency(ExecutorState state) {
+        return state.stepExecutor.execute(collected, pairsInput);
+    }
+}
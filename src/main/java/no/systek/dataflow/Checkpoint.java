@@ -0,0 +1,129 @@
+package no.systek.dataflow;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Snapshot of one execution of a step graph, taken while none of its tasks is running: the inputs waiting in the
+ * mailbox of each step, the state of steps which support checkpoints (like the items of a collector or the inputs
+ * waiting in a joiner) and the results produced so far. The input of the execution is part of it as long as it waits
+ * in the mailboxes of the roots.
+ * <p>
+ * All waiting tasks must be {@link PriorityTaskQueue.Recreatable}, which holds for the tasks of the steps themselves:
+ * they are scheduled again by posting the saved inputs and restoring the states. Inputs and states are written with
+ * Java serialization, so they must be {@link Serializable}.
+ * <p>
+ * See {@link StepExecutor#executeList(Step, Object, File, long, java.util.concurrent.TimeUnit)}
+ */
+final class Checkpoint implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final ArrayList<String> steps;
+    private final ArrayList<ArrayList<Object>> mailboxes;
+    private final ArrayList<Serializable> states;
+    private final ArrayList<Object> results;
+
+    private Checkpoint(ArrayList<String> steps, ArrayList<ArrayList<Object>> mailboxes,
+            ArrayList<Serializable> states, ArrayList<Object> results) {
+        this.steps = steps;
+        this.mailboxes = mailboxes;
+        this.states = states;
+        this.results = results;
+    }
+
+    /**
+     * @return the first step which has state in this execution but does not support checkpoints, or null
+     */
+    static Step<?, ?> findUnsupported(GraphPlan plan, PriorityTaskQueue taskQueue) {
+        List<Step<?, ?>> all = plan.getSteps();
+        for (int i = 0; i < all.size(); i++) {
+            if (!all.get(i).canSaveState(taskQueue)) {
+                return all.get(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Must be called while no task of the execution is running, see {@link PriorityTaskQueue#runWhenQuiet}, and
+     * only if no step is {@link #findUnsupported unsupported}
+     */
+    static Checkpoint take(GraphPlan plan, PriorityTaskQueue taskQueue, List<?> results) {
+        List<Step<?, ?>> all = plan.getSteps();
+        ArrayList<String> steps = new ArrayList<>(all.size());
+        ArrayList<ArrayList<Object>> mailboxes = new ArrayList<>(all.size());
+        ArrayList<Serializable> states = new ArrayList<>(all.size());
+        for (int i = 0; i < all.size(); i++) {
+            Step<?, ?> step = all.get(i);
+            steps.add(step.getName());
+            mailboxes.add(step.saveMailbox(taskQueue));
+            states.add(step.saveState(taskQueue));
+        }
+        synchronized (results) {
+            return new Checkpoint(steps, mailboxes, states, new ArrayList<>(results));
+        }
+    }
+
+    /**
+     * Restores the mailboxes and states into a new execution of the same graph, which has not been started yet
+     */
+    void restore(GraphPlan plan, PriorityTaskQueue taskQueue) {
+        List<Step<?, ?>> all = plan.getSteps();
+        if (all.size() != steps.size()) {
+            throw new IllegalStateException(
+                    "Checkpoint has " + steps.size() + " steps, but the graph has " + all.size());
+        }
+        for (int i = 0; i < all.size(); i++) {
+            if (!all.get(i).getName().equals(steps.get(i))) {
+                throw new IllegalStateException(
+                        "Checkpoint does not match the graph, expected " + steps.get(i) + " but got "
+                                + all.get(i).getName());
+            }
+        }
+        for (int i = 0; i < all.size(); i++) {
+            all.get(i).restore(taskQueue, states.get(i), mailboxes.get(i));
+        }
+    }
+
+    List<Object> getResults() {
+        return results;
+    }
+
+    /**
+     * Writes this checkpoint to a temporary file next to the given one first, and then replaces the given file with
+     * it, so the file always holds a complete checkpoint
+     */
+    void write(File file) throws IOException {
+        File directory = file.getAbsoluteFile().getParentFile();
+        File temp = File.createTempFile(file.getName(), ".tmp", directory);
+        try {
+            try (ObjectOutputStream out = new ObjectOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(temp)))) {
+                out.writeObject(this);
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp.toPath());
+        }
+    }
+
+    static Checkpoint read(File file) throws IOException {
+        try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            return (Checkpoint) in.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Could not read checkpoint " + file, e);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package no.systek.dataflow;
+
+/**
+ * Carries the context of the thread which starts an execution (like the MDC and correlation id) over to the threads
+ * executing its tasks.
+ * <p>
+ * The context is captured once per execution and the same snapshot is then attached around each task, so a
+ * snapshot must be immutable. A worker thread running several tasks of the same execution in a row keeps the
+ * snapshot attached and only {@link #reset} it between the tasks.
+ */
+public interface ContextPropagator {
+
+    /**
+     * Does not propagate anything, tasks run with whatever context the worker thread has
+     */
+    ContextPropagator NONE = new ContextPropagator() {
+        @Override
+        public Object capture() {
+            return null;
+        }
+
+        @Override
+        public Object attach(Object snapshot) {
+            return null;
+        }
+
+        @Override
+        public void reset(Object snapshot) {
+        }
+
+        @Override
+        public void detach(Object previous) {
+        }
+    };
+
+    /**
+     * @return an immutable snapshot of the context of the current thread
+     */
+    Object capture();
+
+    /**
+     * Makes the snapshot the context of the current thread
+     *
+     * @return whatever is needed by {@link #detach} to restore the context the thread had before
+     */
+    Object attach(Object snapshot);
+
+    /**
+     * Called between two tasks while the snapshot stays attached to the current thread, to undo any changes the
+     * previous task made to the context. The default attaches the snapshot again.
+     */
+    default void reset(Object snapshot) {
+        attach(snapshot);
+    }
+
+    /**
+     * Restores the context the current thread had before {@link #attach} was called
+     */
+    void detach(Object previous);
+}
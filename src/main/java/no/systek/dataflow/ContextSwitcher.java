@@ -2,10 +2,7 @@ package no.systek.dataflow;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.slf4j.MDC;
 
-import java.util.Map;
-import java.util.Optional;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
 
@@ -17,22 +14,24 @@ public class ContextSwitcher {
      * logs uncaught exceptions
      */
     public static Runnable wrap(Runnable in, Supplier<String> correlationIdProvider, Consumer<String> correlationIdSetter) {
-        final Optional<Map<String, String>> context = Optional.ofNullable(MDC.getCopyOfContextMap());
-        final Optional<String> korrelasjonsId = Optional.ofNullable(correlationIdProvider.get());
+        ContextPropagator propagator = new MdcContextPropagator(correlationIdProvider, correlationIdSetter);
+        return wrap(in, propagator, propagator.capture());
+    }
+
+    /**
+     * Like {@link #wrap(Runnable, Supplier, Consumer)}, but with a snapshot which has already been captured and can
+     * be shared by many tasks
+     */
+    public static Runnable wrap(Runnable in, ContextPropagator propagator, Object snapshot) {
         return () -> {
-            Optional<Map<String, String>> contextBackup = Optional.ofNullable(MDC.getCopyOfContextMap());
-            final Optional<String> backupKorrelasjonsId = Optional.ofNullable(correlationIdProvider.get());
-            context.ifPresent(MDC::setContextMap);
-            korrelasjonsId.ifPresent(correlationIdSetter);
+            Object previous = propagator.attach(snapshot);
             try {
                 in.run();
             } catch (Exception e) {
                 LOGGER.error(e.getMessage(), e);
                 throw e;
             } finally {
-                MDC.clear();
-                contextBackup.ifPresent(MDC::setContextMap);
-                backupKorrelasjonsId.ifPresent(correlationIdSetter);
+                propagator.detach(previous);
             }
         };
     }
@@ -0,0 +1,62 @@
+package no.systek.dataflow;
+
+import java.util.function.Consumer;
+
+/**
+ * Base class of steps which are run with the task queue of the execution, e.g. to keep state per execution with
+ * {@link #getState} or to post to other steps. They implement {@link #run(Object, Consumer, PriorityTaskQueue)}
+ * instead of {@link #run(Object, Consumer)}.
+ * <p>
+ * Steps whose subclasses override {@link #run(Object, Consumer)}, like the collector and joiner steps which had
+ * that method before they were run with the task queue, keep it as the method doing the work and call it with
+ * {@link #runWithTaskQueue}. It can then get the task queue from {@link #currentTaskQueue()}.
+ */
+public abstract class ExecutionStep<I, O> extends Step<I, O> {
+
+    private static final ThreadLocal<PriorityTaskQueue> TASK_QUEUE = new ThreadLocal<>();
+
+    public ExecutionStep(int maxParallelExecution) {
+        super(maxParallelExecution);
+    }
+
+    public ExecutionStep(String name, int maxParallelExecution) {
+        super(name, maxParallelExecution);
+    }
+
+    @Override
+    protected abstract void run(I input, Consumer<O> onResult, PriorityTaskQueue taskQueue);
+
+    /**
+     * Runs the step with the task queue of {@link #currentTaskQueue()}, so it can only be called while the step is
+     * run with {@link #runWithTaskQueue}
+     */
+    @Override
+    protected void run(I input, Consumer<O> onResult) {
+        run(input, onResult, currentTaskQueue());
+    }
+
+    /**
+     * Calls {@link #run(Object, Consumer)} with the given task queue as {@link #currentTaskQueue()}
+     */
+    protected final void runWithTaskQueue(I input, Consumer<O> onResult, PriorityTaskQueue taskQueue) {
+        PriorityTaskQueue previous = TASK_QUEUE.get();
+        TASK_QUEUE.set(taskQueue);
+        try {
+            run(input, onResult);
+        } finally {
+            // runs can nest on one thread, e.g. when a waiting worker runs a forked task
+            TASK_QUEUE.set(previous);
+        }
+    }
+
+    /**
+     * @return the task queue of the execution which this thread runs the step for, see {@link #runWithTaskQueue}
+     */
+    protected final PriorityTaskQueue currentTaskQueue() {
+        PriorityTaskQueue taskQueue = TASK_QUEUE.get();
+        if (taskQueue == null) {
+            throw new IllegalStateException(getName() + " is not run with the task queue of an execution");
+        }
+        return taskQueue;
+    }
+}
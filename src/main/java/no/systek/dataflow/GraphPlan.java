@@ -0,0 +1,211 @@
+package no.systek.dataflow;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable plan of a step graph, compiled from its tail step: all steps which the tail depends on in topological
+ * order (each step after all its parents), the graph depth of each step, the root steps and the loops.
+ * <p>
+ * The graph is walked once by a depth first search over the parents, so compiling takes time linear in the number
+ * of steps and dependencies, however many paths there are through the graph. A dependency on a step which is still
+ * being walked closes a loop; such back edges are ignored for the order and the depths. Steps with no other
+ * parents are roots, like HeatWater in the loop of CappuccinoTest.
+ * <p>
+ * See {@link Step#compile()}
+ */
+@SuppressWarnings("WeakerAccess")
+public final class GraphPlan {
+    private static final int[] NONE = new int[0];
+
+    private final long version;
+    private final Step<?, ?>[] steps;
+    private final Map<Step<?, ?>, Integer> indexes;
+    private final int[] depths;
+    private final int[][] parents;
+    private final int[][] children;
+    private final int[] roots;
+    private final int loops;
+
+    private GraphPlan(long version, List<Step<?, ?>> order, Map<Step<?, ?>, Integer> indexes, int[] depths,
+            int[][] parents, int[][] children, int[] roots, int loops) {
+        this.version = version;
+        this.steps = order.toArray(new Step<?, ?>[0]);
+        this.indexes = indexes;
+        this.depths = depths;
+        this.parents = parents;
+        this.children = children;
+        this.roots = roots;
+        this.loops = loops;
+    }
+
+    static GraphPlan compile(Step<?, ?> tail, long version) {
+        Map<Step<?, ?>, Integer> indexes = new IdentityHashMap<>();
+        Map<Step<?, ?>, Boolean> walking = new IdentityHashMap<>();
+        List<Step<?, ?>> order = new ArrayList<>();
+        List<int[]> forwardParents = new ArrayList<>();
+        List<Integer> depths = new ArrayList<>();
+        List<Step<?, ?>[]> backEdges = new ArrayList<>();
+
+        // iterative, deep graphs must not overflow the stack
+        List<Step<?, ?>> path = new ArrayList<>();
+        List<Integer> nextParent = new ArrayList<>();
+        path.add(tail);
+        nextParent.add(0);
+        walking.put(tail, Boolean.TRUE);
+
+        while (!path.isEmpty()) {
+            int top = path.size() - 1;
+            Step<?, ?> step = path.get(top);
+            List<? extends Step<?, ?>> stepParents = step.getParents();
+            int next = nextParent.get(top);
+
+            if (next < stepParents.size()) {
+                nextParent.set(top, next + 1);
+                Step<?, ?> parent = stepParents.get(next);
+                if (walking.containsKey(parent)) {
+                    backEdges.add(new Step<?, ?>[]{parent, step});
+                } else if (!indexes.containsKey(parent)) {
+                    path.add(parent);
+                    nextParent.add(0);
+                    walking.put(parent, Boolean.TRUE);
+                }
+                continue;
+            }
+
+            // all parents are done, except the ones closing a loop which are still being walked
+            int depth = 1;
+            int[] forward = new int[stepParents.size()];
+            int count = 0;
+            for (Step<?, ?> parent : stepParents) {
+                Integer index = indexes.get(parent);
+                if (index != null) {
+                    forward[count++] = index;
+                    depth = Math.max(depth, depths.get(index) + 1);
+                }
+            }
+            indexes.put(step, order.size());
+            order.add(step);
+            forwardParents.add(count == 0 ? NONE : Arrays.copyOf(forward, count));
+            depths.add(depth);
+
+            walking.remove(step);
+            path.remove(top);
+            nextParent.remove(top);
+        }
+
+        int size = order.size();
+        int[][] parents = forwardParents.toArray(new int[size][]);
+        int[] depthArray = new int[size];
+        int[] childCount = new int[size];
+        List<Integer> roots = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            depthArray[i] = depths.get(i);
+            for (int parent : parents[i]) {
+                childCount[parent]++;
+            }
+            if (parents[i].length == 0) {
+                roots.add(i);
+            }
+        }
+        for (Step<?, ?>[] edge : backEdges) {
+            childCount[indexes.get(edge[0])]++;
+        }
+
+        int[][] children = new int[size][];
+        for (int i = 0; i < size; i++) {
+            children[i] = childCount[i] == 0 ? NONE : new int[childCount[i]];
+            childCount[i] = 0;
+        }
+        for (int i = 0; i < size; i++) {
+            for (int parent : parents[i]) {
+                children[parent][childCount[parent]++] = i;
+            }
+        }
+        for (Step<?, ?>[] edge : backEdges) {
+            int parent = indexes.get(edge[0]);
+            children[parent][childCount[parent]++] = indexes.get(edge[1]);
+        }
+
+        if (roots.isEmpty()) {
+            throw new IllegalArgumentException("The graph of " + tail.getName() + " has no root step");
+        }
+        return new GraphPlan(version, order, indexes, depthArray, parents, children,
+                roots.stream().mapToInt(Integer::intValue).toArray(), backEdges.size());
+    }
+
+    long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return all steps of the graph, each after all its parents (apart from parents closing a loop)
+     */
+    public List<Step<?, ?>> getSteps() {
+        return Collections.unmodifiableList(Arrays.asList(steps));
+    }
+
+    /**
+     * @return the steps the inputs of an execution are posted to
+     */
+    @SuppressWarnings("unchecked")
+    public List<Step<Object, ?>> getRoots() {
+        List<Step<Object, ?>> result = new ArrayList<>(roots.length);
+        for (int root : roots) {
+            result.add((Step<Object, ?>) steps[root]);
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    /**
+     * @return 1 for root steps, otherwise the length of the longest path from a root step to the given step
+     */
+    public int getDepth(Step<?, ?> step) {
+        return depths[indexOf(step)];
+    }
+
+    /**
+     * @return the parents of the given step in the plan, not counting parents which close a loop
+     */
+    public List<Step<?, ?>> getParents(Step<?, ?> step) {
+        return toSteps(parents[indexOf(step)]);
+    }
+
+    /**
+     * @return the children of the given step in the plan, including children which close a loop
+     */
+    public List<Step<?, ?>> getChildren(Step<?, ?> step) {
+        return toSteps(children[indexOf(step)]);
+    }
+
+    public boolean hasLoops() {
+        return loops > 0;
+    }
+
+    /**
+     * @return the number of dependencies which close a loop
+     */
+    public int getLoopCount() {
+        return loops;
+    }
+
+    private int indexOf(Step<?, ?> step) {
+        Integer index = indexes.get(step);
+        if (index == null) {
+            throw new IllegalArgumentException(step.getName() + " is not part of this graph");
+        }
+        return index;
+    }
+
+    private List<Step<?, ?>> toSteps(int[] indexes) {
+        List<Step<?, ?>> result = new ArrayList<>(indexes.length);
+        for (int index : indexes) {
+            result.add(steps[index]);
+        }
+        return Collections.unmodifiableList(result);
+    }
+}
@@ -0,0 +1,147 @@
+package no.systek.dataflow;
+
+import org.slf4j.MDC;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Propagates the MDC and a correlation id.
+ * <p>
+ * The snapshot is taken once per execution. Each worker thread remembers which snapshot it has attached, so a task
+ * which runs inside another task of the same execution (like forked tasks which are run by the worker waiting for
+ * them) neither copies nor restores anything, and inside a task of another execution only the reference to the
+ * outer snapshot is kept. An empty snapshot is not attached at all, the tasks then run with the context of the
+ * worker thread.
+ */
+public class MdcContextPropagator implements ContextPropagator {
+    private static final Object UNCHANGED = new Object();
+    private static final Object EMPTY = new Object();
+
+    private final Supplier<String> correlationIdProvider;
+    private final Consumer<String> correlationIdSetter;
+    private final ThreadLocal<Snapshot> attached = new ThreadLocal<>();
+
+    public MdcContextPropagator(Supplier<String> correlationIdProvider, Consumer<String> correlationIdSetter) {
+        this.correlationIdProvider = correlationIdProvider;
+        this.correlationIdSetter = correlationIdSetter;
+    }
+
+    @Override
+    public Object capture() {
+        return capture(true);
+    }
+
+    private Snapshot capture(boolean attachable) {
+        Map<String, String> mdc = MDC.getCopyOfContextMap();
+        String correlationId = correlationIdProvider.get();
+        if ((mdc == null || mdc.isEmpty()) && correlationId == null) {
+            return null;
+        }
+        return new Snapshot(mdc == null ? null : Collections.unmodifiableMap(mdc), correlationId, attachable);
+    }
+
+    @Override
+    public Object attach(Object snapshot) {
+        Snapshot current = attached.get();
+        if (snapshot == null || snapshot == current) {
+            return UNCHANGED;
+        }
+
+        // inside a task of another execution, its snapshot is still the context of this thread, so there is
+        // nothing to copy
+        Object previous = current;
+        if (previous == null) {
+            previous = capture(false);
+            if (previous == null) {
+                previous = EMPTY;
+            }
+        }
+        Snapshot next = (Snapshot) snapshot;
+        apply(next);
+        attached.set(next);
+        return previous;
+    }
+
+    /**
+     * Re-applies the snapshot only if the task before changed one of its entries or the correlation id, as setting
+     * the MDC copies it. This compares entry by entry without copying, so a key which a task adds to the MDC without
+     * changing any of the snapshot stays for the following tasks of the execution on this thread, until the context
+     * is detached.
+     */
+    @Override
+    public void reset(Object snapshot) {
+        if (snapshot == null) {
+            return;
+        }
+        Snapshot expected = (Snapshot) snapshot;
+        if (!matches(expected.mdc)) {
+            if (expected.mdc != null) {
+                MDC.setContextMap(expected.mdc);
+            } else {
+                MDC.clear();
+            }
+        }
+        if (expected.correlationId != null && !expected.correlationId.equals(correlationIdProvider.get())) {
+            correlationIdSetter.accept(expected.correlationId);
+        }
+    }
+
+    private static boolean matches(Map<String, String> mdc) {
+        if (mdc == null) {
+            return true;
+        }
+        for (Map.Entry<String, String> entry : mdc.entrySet()) {
+            if (!Objects.equals(entry.getValue(), MDC.get(entry.getKey()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void detach(Object previous) {
+        if (previous == UNCHANGED) {
+            return;
+        }
+        if (previous == EMPTY) {
+            MDC.clear();
+            attached.remove();
+            return;
+        }
+        Snapshot snapshot = (Snapshot) previous;
+        apply(snapshot);
+        if (snapshot.attachable) {
+            attached.set(snapshot);
+        } else {
+            attached.remove();
+        }
+    }
+
+    private void apply(Snapshot snapshot) {
+        if (snapshot.mdc != null) {
+            MDC.setContextMap(snapshot.mdc);
+        } else {
+            MDC.clear();
+        }
+        if (snapshot.correlationId != null) {
+            correlationIdSetter.accept(snapshot.correlationId);
+        }
+    }
+
+    private static class Snapshot {
+        private final Map<String, String> mdc;
+        private final String correlationId;
+        // false for the own context of a worker thread, which is only restored
+        private final boolean attachable;
+
+        Snapshot(Map<String, String> mdc, String correlationId, boolean attachable) {
+            this.mdc = mdc;
+            this.correlationId = correlationId;
+            this.attachable = attachable;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package no.systek.dataflow;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Long-lived execution of a graph of steps: the graph is prepared once and then keeps running, while new inputs
+ * can be fed at any time and results are delivered as soon as the tail step produces them.
+ * <p>
+ * Collector and joiner steps are cleaned up each time the graph becomes idle, just like at the end of a normal
+ * execution.
+ * <p>
+ * See {@link StepExecutor#startPipeline}
+ */
+@SuppressWarnings("WeakerAccess")
+public class Pipeline<O> {
+
+    private final List<Step<Object, ?>> roots;
+    private final PriorityTaskQueue taskQueue;
+    private final CompletableFuture<Boolean> done;
+    private final AtomicInteger holds = new AtomicInteger();
+    private volatile boolean closed;
+
+    public Pipeline(
+            Step<?, O> tail,
+            PriorityTaskQueue taskQueue,
+            ExecutorService executorService,
+            Consumer<Exception> exceptionListener,
+            Consumer<O> onResult) {
+
+        this.taskQueue = taskQueue;
+        this.roots = tail.prepare(taskQueue, onResult);
+        this.done = taskQueue.startContinuous(executorService, exceptionListener);
+    }
+
+    /**
+     * Posts a new input to all root steps of the graph
+     */
+    public void feed(Object input) {
+        if (closed && holds.get() == 0) {
+            throw new IllegalStateException("Pipeline has been closed");
+        }
+        for (int i = 0; i < roots.size(); i++) {
+            roots.get(i).post(input, taskQueue);
+        }
+    }
+
+    /**
+     * Posts a new input to the given root step of the graph only, for graphs with several kinds of inputs
+     */
+    public void feed(Step<?, ?> root, Object input) {
+        if (closed && holds.get() == 0) {
+            throw new IllegalStateException("Pipeline has been closed");
+        }
+        for (int i = 0; i < roots.size(); i++) {
+            if (roots.get(i) == root) {
+                roots.get(i).post(input, taskQueue);
+                return;
+            }
+        }
+        throw new IllegalArgumentException(root.getName() + " is not a root step of this pipeline");
+    }
+
+    /**
+     * Keeps collector and joiner steps from being cleaned up until {@link #release} is called, while more inputs are
+     * known to be on their way. See {@link PriorityTaskQueue#hold}. A closed pipeline still accepts inputs while it
+     * is held, and only completes once it has been released.
+     */
+    public void hold() {
+        holds.incrementAndGet();
+        taskQueue.hold();
+    }
+
+    public void release() {
+        holds.decrementAndGet();
+        taskQueue.release();
+    }
+
+    /**
+     * @return the task queue this pipeline executes on, which steps see as their execution
+     */
+    public PriorityTaskQueue getTaskQueue() {
+        return taskQueue;
+    }
+
+    /**
+     * Stops accepting new inputs and waits until all inputs fed so far have been processed
+     *
+     * @return true if all inputs have been processed, false if the timeout was reached first
+     */
+    public boolean close(long timeout, TimeUnit unit) {
+        closed = true;
+        taskQueue.close();
+        try {
+            return done.get(timeout, unit);
+        } catch (TimeoutException e) {
+            taskQueue.stop();
+            return done.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            taskQueue.stop();
+            return done.join();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+}
@@ -1,57 +1,143 @@
 package no.systek.dataflow;
 
-import java.util.LinkedList;
-import java.util.List;
+import java.util.Arrays;
 import java.util.Queue;
-import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.function.Supplier;
 
+import no.systek.dataflow.metrics.DataflowMetrics;
+
 /**
  * Schedules tasks ordered by priority
+ * <p>
+ * The queue does not use any locks: tasks are kept in one concurrent queue per priority and dispatching is done
+ * by whichever thread adds or completes a task. Only one thread dispatches at a time, other threads just record
+ * that there is more work and leave it to the thread already dispatching.
+ * <p>
+ * Tasks picked for execution are handed over to "runners", which are submitted to the executor and keep running
+ * tasks as long as there are any, so a steady stream of tasks does not allocate anything per task: the queues are
+ * pre-sized ring buffers and the runners are reused.
+ * <p>
+ * If the tasks are executed by a {@link ForkJoinPool}, tasks at the highest priority which are added by a worker of
+ * that pool are forked directly onto the worker's own deque instead of going through the queues, and idle workers
+ * steal them from there. Those tasks are not limited by "maxParallelTasks" but by the parallelism of the pool. Lower
+ * priorities are still dispatched from the queues, once all forked tasks have completed.
  */
 public class PriorityTaskQueue {
     public static final int HIGHEST_PRIORITY = 1;
 
-    private final Lock lock;
-    private final Condition taskCompleted;
     private final int maxParallelTasks;
-    private final Supplier<String> correlationIdProvider;
-    private final Consumer<String> correlationIdSetter;
+    private final ContextPropagator contextPropagator;
+
+    private static final int RING_SIZE = 256;
+    // runners give other executions sharing the executor a turn after this many tasks
+    private static final int RUNNER_BATCH = 256;
 
-    // guarded by "lock"
     private final AtomicInteger runningTasks = new AtomicInteger(0);
-    private final List<Queue<Consumer<PriorityTaskQueue>>> queues;
+    private final AtomicInteger dispatchRequests = new AtomicInteger(0);
+    private final Queue<Consumer<PriorityTaskQueue>> handOver = new RingQueue<>(RING_SIZE);
+    private final AtomicInteger handedOver = new AtomicInteger(0);
+    private final AtomicInteger activeRunners = new AtomicInteger(0);
+    private final AtomicInteger holds = new AtomicInteger(0);
+    private final AtomicInteger waitingOtherTasks = new AtomicInteger(0);
+    private final Runnable runner = this::runTasks;
+    private final AtomicReference<Queue<Consumer<PriorityTaskQueue>>[]> queues;
+    private final CompletableFuture<Boolean> done = new CompletableFuture<>();
+    private final ConcurrentHashMap<Object, Object> executionState = new ConcurrentHashMap<>();
+    private final Queue<Runnable> whenFinished = new ConcurrentLinkedQueue<>();
+
+    // set once execution has started
+    private volatile Consumer<Exception> exceptionListener;
+    private volatile ExecutorService executorService;
+    private volatile ForkJoinPool forkJoinPool;
+    private volatile boolean stopped;
+    private volatile boolean continuous;
+    private volatile DataflowMetrics metrics = DataflowMetrics.NONE;
+    private volatile Object context;
+    private volatile Runnable whenQuiet;
+
+    // only accessed by the dispatching thread
+    private int currentLevel;
 
     public PriorityTaskQueue(int maxParallelTasks,
                              Supplier<String> correlationIdProvider,
                              Consumer<String> correlationIdSetter) {
 
-        this.lock = new ReentrantLock();
-        this.taskCompleted = this.lock.newCondition();
+        this(maxParallelTasks, new MdcContextPropagator(correlationIdProvider, correlationIdSetter));
+    }
+
+    /**
+     * @param maxParallelTasks  the maximum number of tasks from the queues running at the same time. Tasks forked
+     *                          onto a {@link ForkJoinPool} are not counted against it, see the class documentation
+     * @param contextPropagator carries the context of the thread which starts the execution over to the tasks
+     */
+    @SuppressWarnings("unchecked")
+    public PriorityTaskQueue(int maxParallelTasks, ContextPropagator contextPropagator) {
         this.maxParallelTasks = maxParallelTasks;
-        this.queues = new LinkedList<>();
-        this.correlationIdProvider = correlationIdProvider;
-        this.correlationIdSetter = correlationIdSetter;
+        this.queues = new AtomicReference<>((Queue<Consumer<PriorityTaskQueue>>[]) new Queue<?>[0]);
+        this.contextPropagator = contextPropagator;
     }
 
     public void addTask(int priority, Consumer<PriorityTaskQueue> task) {
         if (priority < HIGHEST_PRIORITY) {
             throw new RuntimeException("Priority cannot be lower than 1");
         }
-        locked(() -> {
-            while (queues.size() < priority) {
-                queues.add(new LinkedBlockingQueue<>());
+        if (!(task instanceof Recreatable)) {
+            task = countedUntilStarted(task);
+        }
+        if (metrics != DataflowMetrics.NONE) {
+            task = timed(priority, task);
+        }
+        if (priority == HIGHEST_PRIORITY && tryFork(task)) {
+            return;
+        }
+        queueAt(priority).offer(task);
+        dispatch();
+    }
+
+    /**
+     * Adds the task after the given delay, unless the execution has completed by then. Waiting for the delay does not
+     * keep the execution from completing.
+     */
+    public void addTaskDelayed(int priority, long delay, TimeUnit unit, Consumer<PriorityTaskQueue> task) {
+        Timers.SCHEDULER.schedule(() -> {
+            if (!done.isDone()) {
+                addTask(priority, task);
             }
-            queues.get(priority - 1).offer(task);
-        });
+        }, delay, unit);
+    }
+
+    /**
+     * Reports metrics of this execution and its steps to the given listener. Must be set before tasks are added.
+     */
+    public void setMetrics(DataflowMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public DataflowMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns the state stored under the given key for the execution of this queue, creating it on first access.
+     * Used by steps to keep their mailboxes and buffers apart from other executions of the same graph.
+     */
+    public Object getExecutionState(Object key, Function<Object, Object> factory) {
+        Object state = executionState.get(key);
+        return state != null ? state : executionState.computeIfAbsent(key, factory);
     }
 
     /**
@@ -69,92 +155,375 @@ public class PriorityTaskQueue {
 
         final long deadLine = System.currentTimeMillis() + unit.toMillis(timeout);
 
-        return locked(() -> {
+        start(executorService, exceptionListener);
 
-            int currentPriority = 0;
-            boolean foundTasksAtPriority = false;
-            while (true) {
+        while (true) {
+            try {
+                return done.get(Math.max(0, deadLine - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                stop();
+                return done.join();
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            } catch (InterruptedException ignored) {
+            }
+        }
+    }
 
-                if (System.currentTimeMillis() > deadLine) {
-                    return false;
-                }
-                if (currentPriority >= queues.size()) {
-                    return true;
-                }
+    /**
+     * Starts executing the queued tasks without waiting for them to complete
+     *
+     * @return a future which completes with true once all queues have been done
+     */
+    public CompletableFuture<Boolean> start(ExecutorService executorService, Consumer<Exception> exceptionListener) {
+        this.exceptionListener = exceptionListener;
+        this.context = contextPropagator.capture();
+        if (executorService instanceof ForkJoinPool) {
+            this.forkJoinPool = (ForkJoinPool) executorService;
+        }
+        this.executorService = executorService;
+        dispatch();
+        return done;
+    }
 
-                Queue<Consumer<PriorityTaskQueue>> tasksAtCurrentPriority = queues.get(currentPriority);
+    /**
+     * Like {@link #start}, but keeps accepting new tasks after all queues have been done, until {@link #close} is
+     * called. Lower priority tasks are executed each time all tasks at higher priorities have been done.
+     */
+    public CompletableFuture<Boolean> startContinuous(
+            ExecutorService executorService,
+            Consumer<Exception> exceptionListener) {
 
-                if (!tasksAtCurrentPriority.isEmpty()) {
-                    foundTasksAtPriority = true;
-                    if (tryScheduleTask(executorService, tasksAtCurrentPriority.peek(), exceptionListener)) {
-                        tasksAtCurrentPriority.poll();
-                        continue;
-                    }
-                }
+        continuous = true;
+        return start(executorService, exceptionListener);
+    }
 
-                if (runningTasks.get() > 0) {
-                    try {
-                        taskCompleted.await(Math.max(1, deadLine - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
-                    } catch (InterruptedException ignored) {
-                    }
-                    continue;
-                }
+    /**
+     * Lets a continuous execution complete as soon as all queues have been done
+     */
+    public void close() {
+        continuous = false;
+        dispatch();
+    }
 
-                currentPriority = !foundTasksAtPriority ? currentPriority + 1 : 0;
-                foundTasksAtPriority = false;
+    /**
+     * Keeps the execution from becoming idle until {@link #release} is called, like a running task would: lower
+     * priority tasks (like the cleanup of collectors) do not start and the execution does not complete. Used while
+     * inputs are known to be on their way from outside, e.g. from another process.
+     */
+    public void hold() {
+        holds.incrementAndGet();
+    }
+
+    public void release() {
+        if (holds.decrementAndGet() < 0) {
+            holds.incrementAndGet();
+            throw new IllegalStateException("Released more often than held");
+        }
+        dispatch();
+    }
+
+    /**
+     * Runs the given action as soon as no task of this execution is running, and does not start new tasks until then.
+     * Used to take a consistent checkpoint of the execution. The action runs on the thread completing the last
+     * running task, or on a thread of the executor if no task is running, never on the calling thread once the
+     * execution has been started: the caller may be a timer thread which must not be held up. Tasks at the highest
+     * priority are not forked meanwhile, see the class documentation, but queued like the others.
+     */
+    public void runWhenQuiet(Runnable action) {
+        whenQuiet = action;
+        ExecutorService executor = executorService;
+        if (executor != null) {
+            try {
+                executor.execute(this::dispatch);
+            } catch (RuntimeException e) {
+                exceptionListener.accept(e);
             }
-        });
+        }
+    }
 
+    /**
+     * @return true if all waiting tasks are {@link Recreatable} and the execution is not held, so a checkpoint taken
+     * now captures the whole execution
+     */
+    public boolean canCheckpoint() {
+        return waitingOtherTasks.get() == 0 && holds.get() == 0;
+    }
+
+    /**
+     * Runs the given action once the execution has completed, or has been stopped and the tasks which were running
+     * then have completed, also if tasks have failed. Used by steps to release what their state holds on to, like
+     * open files. Must be called before the execution is started.
+     */
+    public void whenFinished(Runnable action) {
+        whenFinished.add(action);
+    }
+
+    /**
+     * Stops scheduling new tasks. Tasks which are already running are not interrupted
+     */
+    public void stop() {
+        stopped = true;
+        dispatch();
+        done.complete(false);
     }
 
     /**
-     * Submit a task to the thread pool
+     * Makes sure the queues are looked at by exactly one thread. If another thread is already dispatching, it will
+     * do another round on behalf of this thread before it stops.
+     */
+    private void dispatch() {
+        if (executorService == null || dispatchRequests.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        do {
+            drain();
+            missed = dispatchRequests.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    private void drain() {
+        if (stopped) {
+            if (runningTasks.get() == 0) {
+                finish();
+            }
+            return;
+        }
+
+        Runnable quiet = whenQuiet;
+        if (quiet != null) {
+            if (runningTasks.get() != 0) {
+                // the last running task dispatches again when it completes
+                return;
+            }
+            whenQuiet = null;
+            try {
+                quiet.run();
+            } catch (RuntimeException e) {
+                exceptionListener.accept(e);
+            }
+        }
+
+        // new tasks are only added by running tasks (or fed from outside in a continuous execution), so if nothing
+        // runs now, the queues cannot change while we look at them below
+        boolean idle = runningTasks.get() == 0 && holds.get() == 0;
+
+        Queue<Consumer<PriorityTaskQueue>>[] levels = queues.get();
+        for (int level = 0; level < levels.length; level++) {
+            Queue<Consumer<PriorityTaskQueue>> tasksAtPriority = levels[level];
+            if (tasksAtPriority.isEmpty()) {
+                continue;
+            }
+
+            if (level > 0 && !idle && level != currentLevel) {
+                // lower priorities only start once all other tasks have completed
+                return;
+            }
+
+            if (level != currentLevel) {
+                metrics.priorityChanged(currentLevel + 1, level + 1);
+                currentLevel = level;
+            }
+            while (!tasksAtPriority.isEmpty() && tryScheduleTask(tasksAtPriority)) {
+                // keep going until the queue is empty or max parallel tasks has been reached
+            }
+            return;
+        }
+
+        if (idle && !continuous) {
+            finish();
+            done.complete(true);
+        }
+    }
+
+    /**
+     * Runs the actions waiting for the execution to finish, each only once
+     */
+    private void finish() {
+        Runnable action;
+        while ((action = whenFinished.poll()) != null) {
+            try {
+                action.run();
+            } catch (RuntimeException e) {
+                exceptionListener.accept(e);
+            }
+        }
+    }
+
+    /**
+     * Hand the next task of the given queue over to the runners
      *
-     * @return true is the task was submitted, or false if max parallel tasks has been reached
+     * @return true is the task was handed over, or false if max parallel tasks has been reached
      */
-    private boolean tryScheduleTask(
-            ExecutorService executorService,
-            Consumer<PriorityTaskQueue> task,
-            Consumer<Exception> exceptionListener) {
+    private boolean tryScheduleTask(Queue<Consumer<PriorityTaskQueue>> tasks) {
+        if (runningTasks.incrementAndGet() > maxParallelTasks) {
+            // give it back
+            runningTasks.decrementAndGet();
+            return false;
+        }
+
+        Consumer<PriorityTaskQueue> task = tasks.poll();
+        if (task == null) {
+            runningTasks.decrementAndGet();
+            return false;
+        }
+
+        handedOver.incrementAndGet();
+        handOver.offer(task);
+        while (tryActivateRunner()) {
+            try {
+                executorService.execute(runner);
+            } catch (RuntimeException e) {
+                activeRunners.decrementAndGet();
+                if (handOver.poll() != null) {
+                    handedOver.decrementAndGet();
+                    runningTasks.decrementAndGet();
+                }
+                exceptionListener.accept(e);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Counts one more runner, if there are less runners than tasks handed over
+     */
+    private boolean tryActivateRunner() {
+        while (true) {
+            int active = activeRunners.get();
+            if (active >= handedOver.get()) {
+                return false;
+            }
+            if (activeRunners.compareAndSet(active, active + 1)) {
+                return true;
+            }
+        }
+    }
 
-        if (runningTasks.incrementAndGet() <= maxParallelTasks) {
-            executorService.submit(ContextSwitcher.wrap(() -> {
+    /**
+     * Runs the tasks handed over until there are none left, with the context of the execution. The context is
+     * attached once and reset before each further task, so no task sees the changes of the task before.
+     */
+    private void runTasks() {
+        Object previous = contextPropagator.attach(context);
+        try {
+            int ran = 0;
+            boolean first = true;
+            while (true) {
+                Consumer<PriorityTaskQueue> task = handOver.poll();
+                if (task == null) {
+                    activeRunners.decrementAndGet();
+                    // a task might have been handed over after the poll, while this runner was still counted
+                    if (handOver.isEmpty() || !tryActivateRunner()) {
+                        return;
+                    }
+                    continue;
+                }
+
+                if (!first) {
+                    contextPropagator.reset(context);
+                }
+                first = false;
                 try {
                     task.accept(this);
                 } catch (Exception e) {
                     exceptionListener.accept(e);
                 } finally {
-                    locked(() -> {
-                        runningTasks.decrementAndGet();
-                        taskCompleted.signalAll();
-                    });
+                    handedOver.decrementAndGet();
+                    runningTasks.decrementAndGet();
+                    dispatch();
                 }
-            }, correlationIdProvider, correlationIdSetter));
-            return true;
-        } else {
-            // give it back
-            runningTasks.decrementAndGet();
-            return false;
+
+                if (++ran >= RUNNER_BATCH && !handOver.isEmpty()) {
+                    try {
+                        // continue as a new submission of this runner
+                        executorService.execute(runner);
+                        return;
+                    } catch (RuntimeException e) {
+                        ran = 0;
+                    }
+                }
+            }
+        } finally {
+            contextPropagator.detach(previous);
         }
     }
 
-    private void locked(Runnable r) {
-        locked(() -> {
-            r.run();
+    /**
+     * Forks the task onto the deque of the current worker thread, if running inside the fork join pool executing
+     * this queue
+     *
+     * @return true if the task was forked, false if it has to be queued
+     */
+    private boolean tryFork(Consumer<PriorityTaskQueue> task) {
+        ForkJoinPool pool = forkJoinPool;
+        Thread thread = Thread.currentThread();
+        // while an action waits for the execution to become quiet, steadily forked tasks could keep it from ever
+        // becoming so; queued tasks wait until the action has run instead
+        if (pool == null || stopped || whenQuiet != null
+                || !(thread instanceof ForkJoinWorkerThread)
+                || ((ForkJoinWorkerThread) thread).getPool() != pool) {
             return false;
-        });
+        }
+        runningTasks.incrementAndGet();
+        ForkJoinTask.adapt(toRunnable(task)).fork();
+        return true;
     }
 
-    private <T> T locked(Callable<T> r) {
-        lock.lock();
-        try {
+    private Runnable toRunnable(Consumer<PriorityTaskQueue> task) {
+        return () -> {
+            Object previous = contextPropagator.attach(context);
             try {
-                return r.call();
+                task.accept(this);
             } catch (Exception e) {
-                throw new RuntimeException(e);
+                exceptionListener.accept(e);
+            } finally {
+                runningTasks.decrementAndGet();
+                dispatch();
+                contextPropagator.detach(previous);
+            }
+        };
+    }
+
+    private Consumer<PriorityTaskQueue> countedUntilStarted(Consumer<PriorityTaskQueue> task) {
+        waitingOtherTasks.incrementAndGet();
+        return pq -> {
+            waitingOtherTasks.decrementAndGet();
+            task.accept(pq);
+        };
+    }
+
+    private Consumer<PriorityTaskQueue> timed(int priority, Consumer<PriorityTaskQueue> task) {
+        final Object addedBy = metrics.taskAdded(priority);
+        final long queued = System.nanoTime();
+        return pq -> {
+            metrics.taskStarted(priority, System.nanoTime() - queued, addedBy);
+            task.accept(pq);
+        };
+    }
+
+    private Queue<Consumer<PriorityTaskQueue>> queueAt(int priority) {
+        while (true) {
+            Queue<Consumer<PriorityTaskQueue>>[] current = queues.get();
+            if (current.length >= priority) {
+                return current[priority - 1];
+            }
+            Queue<Consumer<PriorityTaskQueue>>[] grown = Arrays.copyOf(current, priority);
+            for (int i = current.length; i < priority; i++) {
+                grown[i] = new RingQueue<>(RING_SIZE);
+            }
+            if (queues.compareAndSet(current, grown)) {
+                return grown[priority - 1];
             }
-        } finally {
-            lock.unlock();
         }
     }
+
+    /**
+     * A task which steps add again by themselves when an execution is resumed from a checkpoint, because it only
+     * depends on state which the checkpoint contains, like the mailbox of a step. Checkpoints are only taken while
+     * all waiting tasks are recreatable.
+     */
+    public interface Recreatable extends Consumer<PriorityTaskQueue> {
+    }
 }
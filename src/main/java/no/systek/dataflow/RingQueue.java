@@ -0,0 +1,121 @@
+package no.systek.dataflow;
+
+import java.util.AbstractQueue;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Lock-free queue for many producers and consumers, which does not allocate anything per element as long as it
+ * holds no more than its capacity.
+ * <p>
+ * Elements are kept in a pre-sized ring buffer, where each slot has a sequence number telling producers and
+ * consumers whose turn it is. When the ring is full, elements go to an unbounded overflow queue instead, until
+ * that has been emptied again, so a single producer still sees its elements taken in the order it added them.
+ */
+class RingQueue<T> extends AbstractQueue<T> {
+    private final int mask;
+    private final AtomicReferenceArray<T> elements;
+    private final AtomicLongArray sequences;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private final Queue<T> overflow = new ConcurrentLinkedQueue<>();
+
+    /**
+     * @param capacity the size of the ring, rounded up to the next power of two
+     */
+    RingQueue(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.mask = size - 1;
+        this.elements = new AtomicReferenceArray<>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    @Override
+    public boolean offer(T element) {
+        if (element == null) {
+            throw new NullPointerException();
+        }
+        if (overflow.isEmpty() && offerToRing(element)) {
+            return true;
+        }
+        return overflow.offer(element);
+    }
+
+    @Override
+    public T poll() {
+        T element = pollFromRing();
+        return element != null ? element : overflow.poll();
+    }
+
+    @Override
+    public T peek() {
+        long position = head.get();
+        int index = (int) position & mask;
+        T element = sequences.get(index) == position + 1 ? elements.get(index) : null;
+        return element != null ? element : overflow.peek();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return tail.get() == head.get() && overflow.isEmpty();
+    }
+
+    /**
+     * Only an estimate while elements are added or taken concurrently
+     */
+    @Override
+    public int size() {
+        return (int) Math.max(0, tail.get() - head.get()) + overflow.size();
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        throw new UnsupportedOperationException("Cannot iterate over a RingQueue");
+    }
+
+    private boolean offerToRing(T element) {
+        while (true) {
+            long position = tail.get();
+            int index = (int) position & mask;
+            long turn = sequences.get(index) - position;
+            if (turn == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    elements.set(index, element);
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+            } else if (turn < 0) {
+                // the slot has not been emptied since the last round, the ring is full
+                return false;
+            }
+            // else another producer took the slot, try the next one
+        }
+    }
+
+    private T pollFromRing() {
+        while (true) {
+            long position = head.get();
+            int index = (int) position & mask;
+            long turn = sequences.get(index) - (position + 1);
+            if (turn == 0) {
+                if (head.compareAndSet(position, position + 1)) {
+                    T element = elements.get(index);
+                    elements.set(index, null);
+                    sequences.set(index, position + mask + 1);
+                    return element;
+                }
+            } else if (turn < 0) {
+                // nothing has been added to this slot yet, the ring is empty
+                return null;
+            }
+            // else another consumer took the element, try the next one
+        }
+    }
+}
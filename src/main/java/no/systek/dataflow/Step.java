@@ -1,14 +1,23 @@
 package no.systek.dataflow;
 
-import java.util.HashSet;
-import java.util.LinkedList;
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import no.systek.dataflow.metrics.DataflowMetrics;
 
 /**
  * Similar to "actors", a step is a piece of work which is executed as some input arrives and can produce
@@ -20,28 +29,45 @@ import java.util.function.Consumer;
  * <p>
  * Steps can be chained together to (complex) graphs by defining dependencies between then, including loop scenarios.
  * <p>
+ * A step itself only holds the definition of the graph. All state of an execution, like the mailbox of the step, is
+ * kept with the {@link PriorityTaskQueue} of that execution, so one graph can be executed many times concurrently.
+ * Steps which keep state between inputs must use {@link #getState} for the same reason.
+ * <p>
+ * The mailbox is unbounded by default. See {@link #setMailboxCapacity} to limit it.
+ * <p>
+ * Passing an input on to the next step does not allocate anything in the steady state: mailboxes are ring buffers,
+ * and the task and output consumer of a step are created once per execution and reused.
+ * <p>
  * See CappuccinoTest
  * <p>
  */
 @SuppressWarnings("WeakerAccess")
 public abstract class Step<I, O> {
 
+    private static final Function<Object, Object> NEW_CONTEXT = step -> ((Step<?, ?>) step).newContext();
+    private static final int MAILBOX_RING_SIZE = 32;
+
     private final String name;
     private final int maxParallelExecution;
-    private final List<Step<?, I>> parents = new LinkedList<>();
-    private final List<Step<O, ?>> children = new LinkedList<>();
-    private final Queue<I> msgBox = new ConcurrentLinkedQueue<>();
-    private final AtomicInteger scheduledJobs = new AtomicInteger();
-    private final AtomicInteger lock = new AtomicInteger();
+    private final List<Step<?, I>> parents = new ArrayList<>();
+    private final List<Step<O, ?>> children = new ArrayList<>();
     private volatile int graphDepth;
-    protected volatile Consumer<O> onResult;
+    private volatile int mailboxCapacity = Integer.MAX_VALUE;
+    private volatile OverflowPolicy overflowPolicy = OverflowPolicy.BACKPRESSURE;
+    private volatile int batchSize = 1;
+    private volatile long batchNanos;
+    private volatile Step<O, ?> fusedChild;
+    private volatile GraphPlan plan;
+    // changed by each new dependency upstream of this step, a plan compiled for an older version is outdated
+    private final AtomicLong planVersion = new AtomicLong();
+    private volatile I cleanup;
 
     public Step(int maxParallelExecution) {
         this(null, maxParallelExecution);
     }
 
     public Step(String name, int maxParallelExecution) {
-        this.name = name == null ? this.getClass().getSimpleName() : name;
+        this.name = name != null ? name : defaultName(getClass());
         this.maxParallelExecution = maxParallelExecution;
     }
 
@@ -49,6 +75,34 @@ public abstract class Step<I, O> {
         return name;
     }
 
+    private static String defaultName(Class<?> type) {
+        // anonymous steps, like the ones created by Steps, are named after the step type they extend
+        while (type.getSimpleName().isEmpty()) {
+            type = type.getSuperclass();
+        }
+        return type.getSimpleName();
+    }
+
+    /**
+     * Limits the number of inputs waiting in the mailbox of this step. What happens when the mailbox is full
+     * depends on the policy:
+     * <ul>
+     * <li>BACKPRESSURE: parent steps are not started until there is room again. No thread is blocked for this, but
+     * since a parent cannot be stopped while it runs, one run of a parent can still push the mailbox beyond its
+     * capacity. Be careful with loops: two steps waiting for room in each others mailbox never continue</li>
+     * <li>DROP_NEWEST: the new input is discarded</li>
+     * <li>DROP_OLDEST: the oldest input in the mailbox is discarded to make room for the new one</li>
+     * </ul>
+     * Must be configured before the graph is executed.
+     */
+    public void setMailboxCapacity(int capacity, OverflowPolicy policy) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Mailbox capacity must be at least 1");
+        }
+        this.mailboxCapacity = capacity;
+        this.overflowPolicy = policy;
+    }
+
     public boolean executeTasksAndAwaitDone(
         PriorityTaskQueue taskQueue,
         ExecutorService executorService,
@@ -58,19 +112,72 @@ public abstract class Step<I, O> {
         long timeout,
         TimeUnit unit) {
 
-        if (!children.isEmpty()) {
-            throw new RuntimeException("This step has children; please start executing at the tail of the graph");
-        }
-        this.onResult = onResult;
+        schedule(taskQueue, input, onResult);
 
-        // walk the step graph: configure the graph depth on each step and find the root steps
-        HashSet<Step<Object, ?>> roots = new HashSet<>();
-        configureTreeAndFindRoots(new HashSet<>(), roots);
+        return taskQueue.executeTasksAndAwaitDone(executorService, exceptionListener, timeout, unit);
+    }
 
+    /**
+     * Prepares the graph for execution and posts the input to all root steps, without executing anything yet. Use
+     * {@link PriorityTaskQueue#start} to start executing.
+     */
+    public void schedule(PriorityTaskQueue taskQueue, Object input, Consumer<O> onResult) {
         // start execution by scheduling tasks for all roots
-        roots.forEach(rootStep -> rootStep.post(input, taskQueue));
+        List<Step<Object, ?>> roots = prepare(taskQueue, onResult);
+        for (int i = 0; i < roots.size(); i++) {
+            roots.get(i).post(input, taskQueue);
+        }
+    }
 
-        return taskQueue.executeTasksAndAwaitDone(executorService, exceptionListener, timeout, unit);
+    /**
+     * Compiles the graph if needed and sets the result consumer of the execution on this tail step
+     *
+     * @return the root steps, which the inputs of an execution have to be posted to
+     */
+    protected List<Step<Object, ?>> prepare(PriorityTaskQueue taskQueue, Consumer<O> onResult) {
+        if (!children.isEmpty()) {
+            throw new RuntimeException("This step has children; please start executing at the tail of the graph");
+        }
+        context(taskQueue).onResult = onResult;
+        GraphPlan plan = compile();
+        List<Step<?, ?>> steps = plan.getSteps();
+        for (int i = 0; i < steps.size(); i++) {
+            steps.get(i).reportExecutionStarted(taskQueue);
+            steps.get(i).onExecutionStarted(taskQueue);
+        }
+        taskQueue.whenFinished(() -> {
+            for (int i = 0; i < steps.size(); i++) {
+                steps.get(i).onExecutionFinished(taskQueue);
+            }
+        });
+        return plan.getRoots();
+    }
+
+    /**
+     * Compiles the graph which ends with this tail step into a {@link GraphPlan} and configures the graph depth and
+     * fusion of each step from it. The plan is kept and reused by all executions until a dependency is added to the
+     * graph, so this is only needed to look at the plan or to avoid compiling during the first execution.
+     */
+    public GraphPlan compile() {
+        GraphPlan compiled = plan;
+        if (compiled != null && compiled.getVersion() == planVersion.get()) {
+            return compiled;
+        }
+        synchronized (this) {
+            long version = planVersion.get();
+            compiled = plan;
+            if (compiled == null || compiled.getVersion() != version) {
+                compiled = GraphPlan.compile(this, version);
+                for (Step<?, ?> step : compiled.getSteps()) {
+                    step.graphDepth = compiled.getDepth(step);
+                }
+                for (Step<?, ?> step : compiled.getSteps()) {
+                    step.configureFusion();
+                }
+                plan = compiled;
+            }
+            return compiled;
+        }
     }
 
     public void dependsOn(DependencyCreator<Object, I> dependency) {
@@ -82,95 +189,464 @@ public abstract class Step<I, O> {
         return new DependencyCreator<>((Step<Object, O>) this);
     }
 
+    /**
+     * Lets one scheduled task process up to "maxInputs" inputs from the mailbox, one after the other, for at most
+     * "maxTime", instead of scheduling one task per input. This saves the scheduling overhead for steps which are
+     * cheap to run, but less inputs of this step are processed in parallel.
+     * <p>
+     * Must be configured before the graph is executed.
+     */
+    public void setBatching(int maxInputs, long maxTime, TimeUnit unit) {
+        if (maxInputs < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1");
+        }
+        this.batchSize = maxInputs;
+        this.batchNanos = unit.toNanos(maxTime);
+    }
+
     public void post(I input, PriorityTaskQueue taskQueue) {
         if (input != null) {
-            msgBox.offer(input);
+            StepContext<I, O> context = context(taskQueue);
+            if (context.queued.incrementAndGet() > mailboxCapacity) {
+                if (overflowPolicy == OverflowPolicy.DROP_NEWEST) {
+                    context.queued.decrementAndGet();
+                    taskQueue.getMetrics().inputDropped(this);
+                    return;
+                }
+                if (overflowPolicy == OverflowPolicy.DROP_OLDEST && context.msgBox.poll() != null) {
+                    context.queued.decrementAndGet();
+                    taskQueue.getMetrics().inputDropped(this);
+                }
+            }
+            context.msgBox.offer(input);
+            taskQueue.getMetrics().inputQueued(this, context.queued.get());
         }
 
         // try to schedule a new task on the thread pool which handles this new input
         tryScheduleNextJob(taskQueue);
     }
 
+    /**
+     * Runs the step with the task queue of the execution. Steps which need it, e.g. to keep state with
+     * {@link #getState}, extend {@link ExecutionStep} which makes this method the abstract one.
+     */
+    protected void run(I input, Consumer<O> onResult, PriorityTaskQueue taskQueue) {
+        run(input, onResult);
+    }
+
     protected abstract void run(I input, Consumer<O> onResult);
 
     protected void afterRun(PriorityTaskQueue taskQueue) {
     }
 
-    protected int configureTreeAndFindRoots(HashSet<Step<?, ?>> visited, HashSet<Step<Object, ?>> roots) {
-        try {
-            if (!visited.add(this)) {
-                return this.graphDepth;
-            }
+    private void reportExecutionStarted(PriorityTaskQueue taskQueue) {
+        DataflowMetrics metrics = taskQueue.getMetrics();
+        if (metrics != DataflowMetrics.NONE) {
+            StepContext<I, O> context = context(taskQueue);
+            metrics.executionStarted(this, taskQueue, context.queued::get, context.scheduledJobs::get);
+        }
+    }
+
+    /**
+     * Called once for each execution of the graph, before the first input is posted to it and before it is started
+     */
+    protected void onExecutionStarted(PriorityTaskQueue taskQueue) {
+    }
 
-            int myDepth = 1;
+    /**
+     * Called once for each execution of the graph, after it has completed or has been stopped, also if steps have
+     * failed. No task of the execution is running anymore. Steps release what their state holds on to here, like
+     * open files.
+     */
+    protected void onExecutionFinished(PriorityTaskQueue taskQueue) {
+    }
 
-            if (parents.isEmpty() || (parents.size() == 1 && visited.contains(parents.get(0)))) {
-                roots.add((Step<Object, ?>) this);
-            } else {
-                for (Step<?, ?> parent : parents) {
-                    int parentLevel = parent.configureTreeAndFindRoots(visited, roots);
-                    if (parentLevel > myDepth) {
-                        myDepth = parentLevel;
-                    }
-                }
-                myDepth++;
+    /**
+     * Posts the given input to this step once the graph has become idle: the task is added at the graph depth of this
+     * step, so it only runs when no step closer to the roots has work left. Used by collectors and joiners to push
+     * what they have once no more inputs are on their way.
+     * <p>
+     * The input must be the same object on each call, it is not part of a checkpoint: when resuming from one, the
+     * cleanup is scheduled again by {@link #afterRun}.
+     */
+    protected void scheduleCleanup(PriorityTaskQueue taskQueue, I cleanup) {
+        this.cleanup = cleanup;
+        taskQueue.addTask(getGraphDepth(), (PriorityTaskQueue.Recreatable) pq -> post(cleanup, pq));
+    }
+
+    /**
+     * Whether the state of this step, see {@link #getState}, can be saved in a checkpoint. Steps returning true must
+     * override {@link #saveState} and {@link #restoreState}. Checkpoints are skipped while a step which does not
+     * support them has state; steps without state never prevent a checkpoint.
+     *
+     * @see StepExecutor#executeList(Step, Object, java.io.File, long, TimeUnit)
+     */
+    protected boolean supportsCheckpoints() {
+        return false;
+    }
+
+    /**
+     * Converts the state of this step into a form which can be written to a checkpoint. Called while no task of the
+     * execution is running, and only if {@link #supportsCheckpoints()}.
+     */
+    protected Serializable saveState(Object state) {
+        throw new UnsupportedOperationException(getName() + " does not support checkpoints");
+    }
+
+    /**
+     * Creates the state of this step from what {@link #saveState} has returned, when resuming from a checkpoint
+     */
+    protected Object restoreState(Serializable saved) {
+        throw new UnsupportedOperationException(getName() + " does not support checkpoints");
+    }
+
+    /**
+     * @return the inputs waiting in the mailbox of this step, without the scheduled cleanup. Only called while no
+     * task of the execution is running, the mailbox is polled and refilled in the same order.
+     */
+    ArrayList<Object> saveMailbox(PriorityTaskQueue taskQueue) {
+        StepContext<I, O> context = context(taskQueue);
+        ArrayList<Object> inputs = new ArrayList<>();
+        List<I> all = new ArrayList<>();
+        I input;
+        while ((input = context.msgBox.poll()) != null) {
+            all.add(input);
+            if (input != cleanup) {
+                inputs.add(input);
             }
+        }
+        for (int i = 0; i < all.size(); i++) {
+            context.msgBox.offer(all.get(i));
+        }
+        return inputs;
+    }
 
-            this.graphDepth = myDepth;
+    /**
+     * @return true if this step has no state in this execution, or supports checkpoints
+     */
+    boolean canSaveState(PriorityTaskQueue taskQueue) {
+        return context(taskQueue).state == null || supportsCheckpoints();
+    }
 
-            return myDepth;
-        } finally {
-            visited.remove(this);
+    /**
+     * @return the saved state of this step, or null if it has none in this execution
+     */
+    Serializable saveState(PriorityTaskQueue taskQueue) {
+        Object state = context(taskQueue).state;
+        return state != null ? saveState(state) : null;
+    }
+
+    /**
+     * Restores the state and mailbox of this step into a new execution, which has not been started yet
+     */
+    @SuppressWarnings("unchecked")
+    void restore(PriorityTaskQueue taskQueue, Serializable state, List<Object> inputs) {
+        if (state != null) {
+            context(taskQueue).state = restoreState(state);
+            // lets steps schedule their cleanup again
+            afterRun(taskQueue);
         }
+        for (int i = 0; i < inputs.size(); i++) {
+            post((I) inputs.get(i), taskQueue);
+        }
+    }
+
+    /**
+     * Returns the state of this step for the execution of the given task queue, creating it on first access. A
+     * factory returning null only looks the state up, it is then null if none has been created yet.
+     */
+    @SuppressWarnings("unchecked")
+    protected <S> S getState(PriorityTaskQueue taskQueue, Supplier<S> factory) {
+        StepContext<I, O> context = context(taskQueue);
+        Object state = context.state;
+        if (state == null) {
+            synchronized (context) {
+                state = context.state;
+                if (state == null) {
+                    state = factory.get();
+                    context.state = state;
+                }
+            }
+        }
+        return (S) state;
     }
 
     private void tryScheduleNextJob(PriorityTaskQueue taskQueue) {
+        StepContext<I, O> context = context(taskQueue);
+
         // only one thread at a time here
-        if (lock.getAndIncrement() == 0) {
+        if (context.lock.getAndIncrement() == 0) {
             try {
-                while (msgBox.peek() != null && scheduledJobs.get() < maxParallelExecution) {
-                    scheduledJobs.incrementAndGet();
-                    I input = msgBox.poll();
-                    taskQueue.addTask(PriorityTaskQueue.HIGHEST_PRIORITY, pq -> {
-                        try {
-                            run(input, output -> onOutputAvailable(output, pq));
-                            afterRun(pq);
-                        } finally {
-                            scheduledJobs.decrementAndGet();
-                            tryScheduleNextJob(pq);
-                        }
-                    });
+                // each scheduled job claims one of the queued inputs, and takes it from the mailbox when it starts
+                while (context.queued.get() > context.claims.get()
+                        && context.scheduledJobs.get() < maxParallelExecution
+                        && hasRoomDownstream(context, taskQueue)) {
+
+                    context.claims.incrementAndGet();
+                    int jobs = context.scheduledJobs.incrementAndGet();
+                    taskQueue.getMetrics().taskScheduled(this, jobs, maxParallelExecution);
+                    taskQueue.addTask(PriorityTaskQueue.HIGHEST_PRIORITY, context.job);
                 }
             } finally {
-                if (lock.getAndSet(0) != 1) {
+                if (context.lock.getAndSet(0) != 1) {
                     // another thread tried to enter this block while we had the lock, re-run it in case new messages
                     // have arrived
-                    taskQueue.addTask(PriorityTaskQueue.HIGHEST_PRIORITY, this::tryScheduleNextJob);
+                    taskQueue.addTask(PriorityTaskQueue.HIGHEST_PRIORITY, context.reschedule);
                 }
             }
         }
     }
 
+    private void runJob(StepContext<I, O> context, PriorityTaskQueue pq) {
+        try {
+            I input = pollInput(context, pq);
+            context.claims.decrementAndGet();
+            // the input might have been taken by a running task in batch mode, or dropped
+            if (input != null) {
+                runBatch(input, context, pq);
+            }
+        } finally {
+            context.scheduledJobs.decrementAndGet();
+            tryScheduleNextJob(pq);
+        }
+    }
+
+    /**
+     * Runs the given input and, in batch mode, continues with more inputs from the mailbox until the batch is full,
+     * the time is up or the mailbox is empty
+     */
+    private void runBatch(I input, StepContext<I, O> context, PriorityTaskQueue pq) {
+        final long started = batchSize > 1 ? System.nanoTime() : 0;
+        int processed = 0;
+        while (input != null) {
+            runOnce(input, context, pq);
+
+            if (++processed >= batchSize || System.nanoTime() - started >= batchNanos) {
+                return;
+            }
+            input = hasRoomDownstream(context, pq) ? pollInput(context, pq) : null;
+        }
+    }
+
+    private I pollInput(StepContext<I, O> context, PriorityTaskQueue taskQueue) {
+        I input = context.msgBox.poll();
+        if (input != null) {
+            context.queued.decrementAndGet();
+            if (mailboxCapacity != Integer.MAX_VALUE) {
+                for (int i = 0; i < parents.size(); i++) {
+                    parents.get(i).resume(taskQueue);
+                }
+            }
+        }
+        return input;
+    }
+
+    /**
+     * Checks whether all children can take more input, counting one output for each task of this step which is
+     * already running. If not, this step gets suspended until one of the children has taken the next input from its
+     * mailbox.
+     */
+    private boolean hasRoomDownstream(StepContext<I, O> context, PriorityTaskQueue taskQueue) {
+        List<Step<O, ?>> all = getAllChildren();
+        for (int i = 0; i < all.size(); i++) {
+            Step<O, ?> child = all.get(i);
+            if (child.isFull(taskQueue, context.scheduledJobs.get())) {
+                context.suspended = true;
+                // check again, the child might have taken an input before it could see the flag
+                if (child.isFull(taskQueue, context.scheduledJobs.get())) {
+                    return false;
+                }
+                context.suspended = false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isFull(PriorityTaskQueue taskQueue, int pendingInputs) {
+        return mailboxCapacity != Integer.MAX_VALUE
+                && overflowPolicy == OverflowPolicy.BACKPRESSURE
+                && context(taskQueue).queued.get() + pendingInputs >= mailboxCapacity;
+    }
+
+    private void resume(PriorityTaskQueue taskQueue) {
+        StepContext<I, O> context = context(taskQueue);
+        if (context.suspended) {
+            context.suspended = false;
+            tryScheduleNextJob(taskQueue);
+        }
+    }
+
+    /**
+     * @return the child which runs as part of the tasks of this step, or null, see {@link #isFusable()}
+     */
+    protected Step<O, ?> getFusedChild() {
+        return fusedChild;
+    }
+
+    /**
+     * Whether this step is a plain function of its input, without state, which can be run directly by the task of
+     * its parent instead of through its mailbox
+     */
+    protected boolean isFusable() {
+        return false;
+    }
+
+    private void configureFusion() {
+        this.fusedChild = findFusableChild();
+    }
+
+    /**
+     * Fuses linear chains: if the only child of this step has no other parents and can be run as part of this
+     * step's task without getting more parallel executions than it allows, the output is handed over directly
+     * instead of going through the mailbox of the child and a new task.
+     */
+    private Step<O, ?> findFusableChild() {
+        if (!isFusable() || getAllChildren().size() != 1) {
+            return null;
+        }
+        Step<O, ?> child = getAllChildren().get(0);
+        if (child == this
+                || !child.isFusable()
+                || child.parents.size() != 1
+                || child.maxParallelExecution < maxParallelExecution
+                || child.mailboxCapacity != Integer.MAX_VALUE
+                || child.batchSize > 1) {
+            return null;
+        }
+        return child;
+    }
+
+    private void runOnce(I input, PriorityTaskQueue pq) {
+        runOnce(input, context(pq), pq);
+    }
+
+    private void runOnce(I input, StepContext<I, O> context, PriorityTaskQueue pq) {
+        DataflowMetrics metrics = pq.getMetrics();
+        if (metrics == DataflowMetrics.NONE) {
+            Consumer<O> emitter = context.emitter;
+            if (emitter == null) {
+                // created on first use, when the execution is known
+                emitter = output -> onOutputAvailable(output, pq);
+                context.emitter = emitter;
+            }
+            run(input, emitter, pq);
+        } else {
+            metrics.runStarted(this);
+            final long started = System.nanoTime();
+            try {
+                run(input, output -> {
+                    metrics.outputProduced(this);
+                    onOutputAvailable(output, pq);
+                }, pq);
+            } finally {
+                // also for failed runs, which would otherwise stay the current run of this thread for the tracer
+                metrics.runCompleted(this, System.nanoTime() - started);
+            }
+        }
+        afterRun(pq);
+    }
+
     protected void onOutputAvailable(O output, PriorityTaskQueue pq) {
-        if (children.isEmpty()) {
-            onResult.accept(output);
+        Step<O, ?> fused = fusedChild;
+        if (fused != null) {
+            fused.runOnce(output, pq);
+        } else if (children.isEmpty()) {
+            publishResult(output, pq);
         } else {
-            children.forEach(s -> s.post(output, pq));
+            for (int i = 0; i < children.size(); i++) {
+                children.get(i).post(output, pq);
+            }
         }
     }
 
+    /**
+     * Hands the output to the result consumer of the execution. Steps which used the former "onResult" field of the
+     * tail step use this instead, since each execution has its own result consumer.
+     */
+    protected void publishResult(O output, PriorityTaskQueue pq) {
+        context(pq).onResult.accept(output);
+    }
+
+    @SuppressWarnings("unchecked")
+    private StepContext<I, O> context(PriorityTaskQueue taskQueue) {
+        return (StepContext<I, O>) taskQueue.getExecutionState(this, NEW_CONTEXT);
+    }
+
+    private StepContext<I, O> newContext() {
+        StepContext<I, O> context = new StepContext<>(new RingQueue<>(MAILBOX_RING_SIZE));
+        // both only depend on the mailbox, so they are recreated by posting the inputs of a checkpoint
+        context.job = pq -> runJob(context, pq);
+        context.reschedule = this::tryScheduleNextJob;
+        return context;
+    }
+
     protected void addParent(Step<?, I> parent) {
         this.parents.add(parent);
+        invalidatePlans();
+    }
+
+    /**
+     * Outdates the compiled plans of all tail steps which this step sends its output to, directly or through other
+     * steps, since their graphs contain this step. Must be called when a dependency of this step changes; the plans
+     * of other graphs stay valid, so their executions are not affected.
+     */
+    protected final void invalidatePlans() {
+        Set<Step<?, ?>> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<Step<?, ?>> pending = new ArrayDeque<>();
+        pending.add(this);
+        while (!pending.isEmpty()) {
+            Step<?, ?> step = pending.poll();
+            if (visited.add(step)) {
+                step.planVersion.incrementAndGet();
+                pending.addAll(step.getAllChildren());
+            }
+        }
+    }
+
+    List<Step<?, I>> getParents() {
+        return parents;
     }
 
     protected List<Step<O, ?>> getChildren() {
         return children;
     }
 
+    /**
+     * @return all steps which this step can send its output to
+     */
+    protected List<Step<O, ?>> getAllChildren() {
+        return children;
+    }
+
     protected Integer getGraphDepth() {
         return graphDepth;
     }
 
+    /**
+     * Runtime state of a step, for one execution
+     */
+    private static class StepContext<I, O> {
+        private final Queue<I> msgBox;
+        private final AtomicInteger scheduledJobs = new AtomicInteger();
+        private final AtomicInteger lock = new AtomicInteger();
+        private final AtomicInteger queued = new AtomicInteger();
+        private final AtomicInteger claims = new AtomicInteger();
+        private volatile boolean suspended;
+        private volatile Consumer<O> onResult;
+        private volatile Object state;
+        private PriorityTaskQueue.Recreatable job;
+        private PriorityTaskQueue.Recreatable reschedule;
+        private volatile Consumer<O> emitter;
+
+        StepContext(Queue<I> msgBox) {
+            this.msgBox = msgBox;
+        }
+    }
+
+    public enum OverflowPolicy {
+        BACKPRESSURE, DROP_NEWEST, DROP_OLDEST
+    }
+
     protected static class DependencyCreator<I, O> {
         public final Step<I, O> step;
 
@@ -180,6 +656,8 @@ public abstract class Step<I, O> {
 
         public void link(Step<O, ?> child) {
             step.children.add(child);
+            // the parent has another child now, which changes its fusion in the graphs it is already part of
+            step.invalidatePlans();
         }
     }
 }
@@ -3,13 +3,35 @@ package no.systek.dataflow;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.LinkedList;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import no.systek.dataflow.metrics.DataflowMetrics;
 
 /**
  * Helper to execute a graph of steps with default error handling
@@ -19,11 +41,11 @@ public class StepExecutor {
     private final static Logger LOGGER = LoggerFactory.getLogger(StepExecutor.class);
 
     private final ExecutorService executorService;
-    private final Consumer<String> correlationIdSettter;
-    private final Supplier<String> correlationIdGetter;
+    private final ContextPropagator contextPropagator;
     private final int maxParallelTasks;
     private final long timeout;
     private final TimeUnit timeUnit;
+    private final DataflowMetrics metrics;
 
     public StepExecutor(
             ExecutorService executorService,
@@ -33,36 +55,211 @@ public class StepExecutor {
             long timeout,
             TimeUnit timeUnit) {
 
+        this(executorService, correlationIdSettter, correlationIdGetter, maxParallelTasks, timeout, timeUnit,
+                DataflowMetrics.NONE);
+    }
+
+    public StepExecutor(
+            ExecutorService executorService,
+            Consumer<String> correlationIdSettter,
+            Supplier<String> correlationIdGetter,
+            int maxParallelTasks,
+            long timeout,
+            TimeUnit timeUnit,
+            DataflowMetrics metrics) {
+
+        this(executorService, new MdcContextPropagator(correlationIdGetter, correlationIdSettter), maxParallelTasks,
+                timeout, timeUnit, metrics);
+    }
+
+    /**
+     * @param contextPropagator carries the context of the thread calling execute over to the worker threads, use
+     *                          {@link ContextPropagator#NONE} if the steps do not need it
+     * @param maxParallelTasks  limits the tasks of one execution running at the same time, except for tasks forked
+     *                          onto a {@link java.util.concurrent.ForkJoinPool}, see {@link PriorityTaskQueue}
+     */
+    public StepExecutor(
+            ExecutorService executorService,
+            ContextPropagator contextPropagator,
+            int maxParallelTasks,
+            long timeout,
+            TimeUnit timeUnit,
+            DataflowMetrics metrics) {
+
+        this.metrics = metrics;
         this.executorService = executorService;
-        this.correlationIdSettter = correlationIdSettter;
-        this.correlationIdGetter = correlationIdGetter;
+        this.contextPropagator = contextPropagator;
         this.maxParallelTasks = maxParallelTasks;
         this.timeout = timeout;
         this.timeUnit = timeUnit;
     }
 
-    public <O> List<O> executeList(Step<?, O> tail, Object input) {
+    /**
+     * Creates an executor which runs each step task on its own virtual thread (Java 21 or newer). There is no global
+     * limit on parallel tasks, since a blocked virtual thread does not hold on to a platform thread. Concurrency is
+     * then only limited per step by its "maxParallelExecution".
+     *
+     * @throws UnsupportedOperationException if the running JVM does not support virtual threads
+     */
+    public static StepExecutor withVirtualThreads(
+            Consumer<String> correlationIdSettter,
+            Supplier<String> correlationIdGetter,
+            long timeout,
+            TimeUnit timeUnit) {
+
+        return new StepExecutor(
+                VirtualThreads.newExecutorService(),
+                correlationIdSettter,
+                correlationIdGetter,
+                Integer.MAX_VALUE,
+                timeout,
+                timeUnit);
+    }
+
+    /**
+     * Executes the graph and hands each result to the sink as soon as the tail step produces it. The sink is called
+     * from the worker threads, possibly concurrently if the tail step allows parallel execution.
+     */
+    public <O> void execute(Step<?, O> tail, Object input, Consumer<O> sink) {
 
-        List<Exception> exceptions = new CopyOnWriteArrayList<>();
-        List<O> results = new CopyOnWriteArrayList<>();
+        Queue<Exception> exceptions = new ConcurrentLinkedQueue<>();
 
         if (!tail.executeTasksAndAwaitDone(
-                new PriorityTaskQueue(maxParallelTasks, correlationIdGetter, correlationIdSettter),
+                newTaskQueue(),
                 executorService,
                 exceptions::add,
                 input,
-                results::add,
+                sink,
                 timeout,
                 timeUnit)) {
             throw new RuntimeException("Timeout during execution");
         }
 
-        if (!exceptions.isEmpty()) {
-            exceptions.forEach(e -> LOGGER.error("", e));
-            throw new RuntimeException("One or more exceptions caught during execution, see logging");
+        throwIfFailed(exceptions);
+    }
+
+    /**
+     * Like {@link #execute(Step, Object, Consumer)}, but without blocking the caller: the returned future completes
+     * once the graph is done, from the worker thread completing the last task. Fails with a {@link
+     * CompletionException} on timeout or if one or more steps failed.
+     */
+    public <O> CompletableFuture<Void> executeAsync(Step<?, O> tail, Object input, Consumer<O> sink) {
+        Queue<Exception> exceptions = new ConcurrentLinkedQueue<>();
+
+        PriorityTaskQueue taskQueue = newTaskQueue();
+        tail.schedule(taskQueue, input, sink);
+        ScheduledFuture<?> timer = Timers.SCHEDULER.schedule(taskQueue::stop, timeout, timeUnit);
+
+        return taskQueue.start(executorService, exceptions::add).thenApply(completed -> {
+            timer.cancel(false);
+            if (!completed) {
+                throw new RuntimeException("Timeout during execution");
+            }
+            throwIfFailed(exceptions);
+            return null;
+        });
+    }
+
+    public <O> CompletableFuture<List<O>> executeListAsync(Step<?, O> tail, Object input) {
+        List<O> results = Collections.synchronizedList(new ArrayList<>());
+        return executeAsync(tail, input, results::add).thenApply(done -> results);
+    }
+
+    public <O> CompletableFuture<List<O>> executeListAsync(Step<?, O> tail) {
+        return executeListAsync(tail, new Object());
+    }
+
+    public <O> CompletableFuture<O> executeAsync(Step<?, O> tail, Object input) {
+        return executeListAsync(tail, input).thenApply(results -> results.isEmpty() ? null : results.get(0));
+    }
+
+    public <O> CompletableFuture<O> executeAsync(Step<?, O> tail) {
+        return executeAsync(tail, new Object());
+    }
+
+    /**
+     * Executes the graph in the background and returns its results as a stream, in the order they are produced. At
+     * most "bufferSize" results are buffered; when the caller does not keep up, the tail step waits until there is
+     * room again.
+     * <p>
+     * A stream which is not consumed until the end must be closed, for example with try-with-resources: that stops
+     * the execution, and tasks waiting for room in the buffer drop their results instead of blocking their threads.
+     * Otherwise the execution only stops at the timeout.
+     */
+    public <O> Stream<O> executeStream(Step<?, O> tail, Object input, int bufferSize) {
+        long deadLine = System.currentTimeMillis() + timeUnit.toMillis(timeout);
+        ResultIterator<O> results = new ResultIterator<>(bufferSize, deadLine);
+
+        PriorityTaskQueue taskQueue = newTaskQueue();
+        tail.schedule(taskQueue, input, results::offer);
+        results.started(taskQueue, taskQueue.start(executorService, results.exceptions::add));
+
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(results, Spliterator.ORDERED), false)
+                .onClose(results::close);
+    }
+
+    public <O> Stream<O> executeStream(Step<?, O> tail, Object input) {
+        return executeStream(tail, input, 1024);
+    }
+
+    /**
+     * Starts a long-lived execution of the graph which new inputs can be fed to, see {@link Pipeline}. Exceptions
+     * are logged and do not stop the pipeline.
+     */
+    public <O> Pipeline<O> startPipeline(Step<?, O> tail, Consumer<O> onResult) {
+        return new Pipeline<>(tail, newTaskQueue(), executorService, e -> LOGGER.error("", e), onResult);
+    }
+
+    public <O> List<O> executeList(Step<?, O> tail, Object input) {
+        List<O> results = Collections.synchronizedList(new ArrayList<>());
+        execute(tail, input, results::add);
+        return results;
+    }
+
+    /**
+     * Like {@link #executeList(Step, Object)}, but takes a checkpoint of the execution at the given interval and
+     * writes it to the given file. If the file exists, the execution resumes from the checkpoint in it instead of
+     * starting with the input, for example after the process has been restarted or the execution has failed or timed
+     * out. The file is deleted once the execution has completed successfully.
+     * <p>
+     * A checkpoint is taken once all running tasks have completed, and no new tasks are started while it is
+     * written. It is skipped if the graph has waiting tasks which cannot be recreated, like the delayed ticks of a
+     * window, or steps with state which do not support checkpoints, see {@link Step#supportsCheckpoints()}. Inputs,
+     * states and results must be {@link java.io.Serializable}. Steps with side effects may repeat them for the
+     * inputs processed after the last checkpoint.
+     */
+    @SuppressWarnings("unchecked")
+    public <O> List<O> executeList(Step<?, O> tail, Object input, File checkpointFile, long interval,
+            TimeUnit intervalUnit) {
+        List<O> results = Collections.synchronizedList(new ArrayList<>());
+        Queue<Exception> exceptions = new ConcurrentLinkedQueue<>();
+
+        PriorityTaskQueue taskQueue = newTaskQueue();
+        if (checkpointFile.exists()) {
+            Checkpoint checkpoint = readCheckpoint(checkpointFile);
+            tail.prepare(taskQueue, results::add);
+            checkpoint.restore(tail.compile(), taskQueue);
+            checkpoint.getResults().forEach(result -> results.add((O) result));
+        } else {
+            tail.schedule(taskQueue, input, results::add);
         }
 
-        return new LinkedList<>(results);
+        CheckpointWriter writer = new CheckpointWriter(tail.compile(), taskQueue, results, exceptions,
+                checkpointFile);
+        ScheduledFuture<?> ticks = Timers.SCHEDULER.scheduleAtFixedRate(
+                () -> taskQueue.runWhenQuiet(writer), interval, interval, intervalUnit);
+        boolean completed;
+        try {
+            completed = taskQueue.executeTasksAndAwaitDone(executorService, exceptions::add, timeout, timeUnit);
+        } finally {
+            ticks.cancel(false);
+        }
+        if (!completed) {
+            throw new RuntimeException("Timeout during execution, resume from " + checkpointFile);
+        }
+        throwIfFailed(exceptions);
+        writer.finish();
+        return results;
     }
 
     public <O> List<O> executeList(Step<?, O> tail) {
@@ -78,4 +275,185 @@ public class StepExecutor {
         return execute(tail, new Object());
     }
 
+    private PriorityTaskQueue newTaskQueue() {
+        PriorityTaskQueue taskQueue = new PriorityTaskQueue(maxParallelTasks, contextPropagator);
+        taskQueue.setMetrics(metrics);
+        return taskQueue;
+    }
+
+    private static Checkpoint readCheckpoint(File file) {
+        try {
+            return Checkpoint.read(file);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read checkpoint " + file, e);
+        }
+    }
+
+    private static void throwIfFailed(Queue<Exception> exceptions) {
+        if (!exceptions.isEmpty()) {
+            exceptions.forEach(e -> LOGGER.error("", e));
+            throw new RuntimeException("One or more exceptions caught during execution, see logging");
+        }
+    }
+
+    /**
+     * Writes checkpoints of one execution, run by its task queue while no task is running
+     */
+    private static class CheckpointWriter implements Runnable {
+        private final GraphPlan plan;
+        private final PriorityTaskQueue taskQueue;
+        private final List<?> results;
+        private final Queue<Exception> exceptions;
+        private final File file;
+        private final Set<Step<?, ?>> unsupported = new HashSet<>();
+        private boolean finished;
+
+        CheckpointWriter(GraphPlan plan, PriorityTaskQueue taskQueue, List<?> results, Queue<Exception> exceptions,
+                File file) {
+            this.plan = plan;
+            this.taskQueue = taskQueue;
+            this.results = results;
+            this.exceptions = exceptions;
+            this.file = file;
+        }
+
+        @Override
+        public synchronized void run() {
+            // the input of a failed task is gone, so keep the last checkpoint from before the failure
+            if (finished || !exceptions.isEmpty()) {
+                return;
+            }
+            if (!taskQueue.canCheckpoint()) {
+                LOGGER.debug("Skipping checkpoint, the execution has tasks or inputs on their way which cannot be "
+                        + "recreated");
+                return;
+            }
+            Step<?, ?> step = Checkpoint.findUnsupported(plan, taskQueue);
+            if (step != null) {
+                if (unsupported.add(step)) {
+                    LOGGER.warn("Skipping checkpoints while " + step.getName() + " has state, it does not support "
+                            + "checkpoints");
+                }
+                return;
+            }
+            try {
+                Checkpoint.take(plan, taskQueue, results).write(file);
+            } catch (IOException e) {
+                LOGGER.warn("Could not write checkpoint " + file, e);
+            }
+        }
+
+        /**
+         * Deletes the checkpoint, and makes sure no checkpoint is written after that
+         */
+        synchronized void finish() {
+            finished = true;
+            if (file.exists() && !file.delete()) {
+                LOGGER.warn("Could not delete checkpoint " + file);
+            }
+        }
+    }
+
+    /**
+     * Blocking iterator over the results of one execution, fed by the tail step
+     */
+    private static class ResultIterator<O> implements Iterator<O> {
+        private static final Object END = new Object();
+        private static final Object NULL = new Object();
+
+        private final BlockingQueue<Object> buffer = new LinkedBlockingQueue<>();
+        private final Semaphore space;
+        private final long deadLine;
+        private final Queue<Exception> exceptions = new ConcurrentLinkedQueue<>();
+        private volatile PriorityTaskQueue taskQueue;
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private volatile boolean completed;
+        private Object next;
+
+        ResultIterator(int bufferSize, long deadLine) {
+            this.space = new Semaphore(bufferSize);
+            this.deadLine = deadLine;
+        }
+
+        void started(PriorityTaskQueue taskQueue, CompletableFuture<Boolean> done) {
+            this.taskQueue = taskQueue;
+            done.thenAccept(completed -> {
+                this.completed = completed;
+                buffer.offer(END);
+            });
+        }
+
+        void offer(O result) {
+            if (closed.get()) {
+                return;
+            }
+            try {
+                if (!space.tryAcquire(Math.max(0, deadLine - System.currentTimeMillis()), TimeUnit.MILLISECONDS)) {
+                    throw new RuntimeException("Timeout while waiting for the consumer of the results");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+            if (closed.get()) {
+                // woken up by close()
+                return;
+            }
+            buffer.offer(result == null ? NULL : result);
+        }
+
+        /**
+         * Stops the execution and wakes up the tasks waiting for room in the buffer, which drop their results from
+         * now on
+         */
+        void close() {
+            if (closed.compareAndSet(false, true)) {
+                space.release(Integer.MAX_VALUE / 2);
+                taskQueue.stop();
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null) {
+                next = take();
+            }
+            if (next == END) {
+                if (!completed) {
+                    throw new RuntimeException("Timeout during execution");
+                }
+                throwIfFailed(exceptions);
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public O next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            O result = next == NULL ? null : (O) next;
+            next = null;
+            return result;
+        }
+
+        private Object take() {
+            while (true) {
+                try {
+                    Object result = buffer.poll(Math.max(0, deadLine - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                    if (result == null) {
+                        taskQueue.stop();
+                        throw new RuntimeException("Timeout during execution");
+                    }
+                    if (result != END) {
+                        space.release();
+                    }
+                    return result;
+                } catch (InterruptedException ignored) {
+                }
+            }
+        }
+    }
 }
@@ -3,6 +3,7 @@ package no.systek.dataflow;
 import no.systek.dataflow.steps.*;
 
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.function.*;
 
 @SuppressWarnings({"WeakerAccess", "SameParameterValue", "unused"})
@@ -35,10 +36,151 @@ public final class Steps {
         };
     }
 
+    /**
+     * Like {@link #newParallel(Function)}, but runs at most "maxParallelExecution" inputs at the same time. Useful
+     * to limit concurrent calls to a backend when tasks are not limited by the size of a thread pool, for example
+     * when using {@link StepExecutor#withVirtualThreads}
+     */
+    public static <I, O> Step<I, O> newParallel(Function<I, O> func, int maxParallelExecution) {
+        return new SimpleStep<I, O>(null, maxParallelExecution) {
+            @Override
+            O execute(I input) {
+                return func.apply(input);
+            }
+        };
+    }
+
+    /**
+     * Runs inputs with the same key one after the other and inputs with different keys in parallel, see
+     * {@link KeyedStep}
+     */
+    public static <K, I, O> KeyedStep<K, I, O> newKeyed(
+            Function<I, K> key,
+            Function<I, O> func,
+            int maxParallelExecution) {
+
+        return new KeyedStep<K, I, O>(null, maxParallelExecution) {
+            @Override
+            protected K key(I input) {
+                return key.apply(input);
+            }
+
+            @Override
+            protected void run(K key, I input, Consumer<O> onResult) {
+                onResult.accept(func.apply(input));
+            }
+        };
+    }
+
+    /**
+     * Memoizes the function in the given cache by the key of each input, see {@link CachingStep}. The function must
+     * be deterministic, and is called for at most "maxParallelExecution" inputs at the same time.
+     */
+    public static <K, I, O> CachingStep<K, I, O> newCached(
+            Function<I, K> key,
+            Function<I, O> func,
+            ResultCache<K, O> cache,
+            int maxParallelExecution) {
+
+        return new CachingStep<K, I, O>(null, maxParallelExecution, cache) {
+            @Override
+            protected K key(I input) {
+                return key.apply(input);
+            }
+
+            @Override
+            protected O execute(I input) {
+                return func.apply(input);
+            }
+        };
+    }
+
+    public static <K, I, O> CachingStep<K, I, O> newCached(
+            Function<I, K> key,
+            Function<I, O> func,
+            ResultCache<K, O> cache) {
+        return newCached(key, func, cache, Integer.MAX_VALUE);
+    }
+
+    public static IntStep newIntSingle(IntUnaryOperator func) {
+        return newIntParallel(func, 1);
+    }
+
+    public static IntStep newIntParallel(IntUnaryOperator func) {
+        return newIntParallel(func, Integer.MAX_VALUE);
+    }
+
+    public static IntStep newIntParallel(IntUnaryOperator func, int maxParallelExecution) {
+        return new IntStep(null, maxParallelExecution) {
+            @Override
+            protected int apply(int value) {
+                return func.applyAsInt(value);
+            }
+        };
+    }
+
+    public static IntCollectorStep newIntCollector(int bufferSize) {
+        return new IntCollectorStep(null, bufferSize);
+    }
+
+    public static LongStep newLongSingle(LongUnaryOperator func) {
+        return newLongParallel(func, 1);
+    }
+
+    public static LongStep newLongParallel(LongUnaryOperator func) {
+        return newLongParallel(func, Integer.MAX_VALUE);
+    }
+
+    public static LongStep newLongParallel(LongUnaryOperator func, int maxParallelExecution) {
+        return new LongStep(null, maxParallelExecution) {
+            @Override
+            protected long apply(long value) {
+                return func.applyAsLong(value);
+            }
+        };
+    }
+
+    public static LongCollectorStep newLongCollector(int bufferSize) {
+        return new LongCollectorStep(null, bufferSize);
+    }
+
+    public static DoubleStep newDoubleSingle(DoubleUnaryOperator func) {
+        return newDoubleParallel(func, 1);
+    }
+
+    public static DoubleStep newDoubleParallel(DoubleUnaryOperator func) {
+        return newDoubleParallel(func, Integer.MAX_VALUE);
+    }
+
+    public static DoubleStep newDoubleParallel(DoubleUnaryOperator func, int maxParallelExecution) {
+        return new DoubleStep(null, maxParallelExecution) {
+            @Override
+            protected double apply(double value) {
+                return func.applyAsDouble(value);
+            }
+        };
+    }
+
+    public static DoubleCollectorStep newDoubleCollector(int bufferSize) {
+        return new DoubleCollectorStep(null, bufferSize);
+    }
+
     public static <T> CollectorStep<T> newCollector(int bufferSize) {
         return new CollectorStep<>(null, bufferSize);
     }
 
+    public static <T> TumblingWindowStep<T> newTumblingWindow(int maxCount, long maxLatency, TimeUnit unit) {
+        return new TumblingWindowStep<>(null, maxCount, maxLatency, unit);
+    }
+
+    public static <T> SlidingWindowStep<T> newSlidingWindow(int size, int slide, long maxLatency, TimeUnit unit) {
+        return new SlidingWindowStep<>(null, size, slide, maxLatency, unit);
+    }
+
+    public static <T> SessionWindowStep<T> newSessionWindow(long gap, long maxLatency, TimeUnit unit) {
+        return new SessionWindowStep<>(null, gap, maxLatency, unit);
+    }
+
     public static <Ileft, Iright, O> PairJoinStep<Ileft, Iright, O> newJoiner(
             Predicate<Object> isLeft,
             BiFunction<Ileft, Iright, O> func) {
@@ -56,6 +198,36 @@ public final class Steps {
         };
     }
 
+    public static <K, Ileft, Iright, O> KeyedJoinStep<K, Ileft, Iright, O> newKeyedJoiner(
+            Predicate<Object> isLeft,
+            Function<Ileft, K> leftKey,
+            Function<Iright, K> rightKey,
+            BiFunction<Ileft, Iright, O> func,
+            KeyedJoinStep.JoinMode mode) {
+
+        return new KeyedJoinStep<K, Ileft, Iright, O>(null, mode) {
+            @Override
+            protected boolean isLeft(Object input) {
+                return isLeft.test(input);
+            }
+
+            @Override
+            protected K leftKey(Ileft left) {
+                return leftKey.apply(left);
+            }
+
+            @Override
+            protected K rightKey(Iright right) {
+                return rightKey.apply(right);
+            }
+
+            @Override
+            protected O join(Ileft left, Iright right) {
+                return func.apply(left, right);
+            }
+        };
+    }
+
     public static <T> SimpleConditionalStep<T> newCondition(Predicate<T> test) {
         return new SimpleConditionalStep<T>(null) {
             @Override
@@ -74,6 +246,19 @@ public final class Steps {
         };
     }
 
+    /**
+     * Like {@link #newParallelListStep}, but splits each input list into chunks of "chunkSize" inputs (or an adaptive
+     * size if 0) which are processed in parallel, see {@link ChunkedListStep}. The function is called once per chunk.
+     */
+    public static <I, O> ListStep<I, O> newChunkedListStep(Function<List<I>, List<O>> func, int chunkSize) {
+        return new ChunkedListStep<I, O>(null, chunkSize) {
+            @Override
+            protected List<O> execute(List<I> in) {
+                return func.apply(in);
+            }
+        };
+    }
+
     public static abstract class SimpleConditionalStep<T> extends ConditionalStep<T, T> {
 
         public SimpleConditionalStep(String name) {
@@ -112,6 +297,11 @@ public final class Steps {
             onResult.accept(execute(input));
         }
 
+        @Override
+        protected boolean isFusable() {
+            return true;
+        }
+
         abstract O execute(I input);
     }
 
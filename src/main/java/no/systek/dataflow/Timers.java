@@ -0,0 +1,28 @@
+package no.systek.dataflow;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+/**
+ * One daemon thread shared by all executions for timeouts and delayed tasks; the scheduled actions only hand work
+ * over to the task queues and never run steps themselves.
+ * <p>
+ * Cancelled actions are removed right away, otherwise the timeout of each finished execution would keep its task
+ * queue and results reachable until the timeout has passed.
+ */
+final class Timers {
+    static final ScheduledExecutorService SCHEDULER = newScheduler();
+
+    private Timers() {
+    }
+
+    private static ScheduledExecutorService newScheduler() {
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "dataflow-timers");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.setRemoveOnCancelPolicy(true);
+        return scheduler;
+    }
+}
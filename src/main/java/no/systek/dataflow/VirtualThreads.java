@@ -0,0 +1,49 @@
+package no.systek.dataflow;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Creates executor services which start a new virtual thread for each task, when running on Java 21 or newer.
+ * <p>
+ * The library itself is compiled for Java 8, so the JDK method is looked up by reflection.
+ */
+@SuppressWarnings("WeakerAccess")
+public final class VirtualThreads {
+
+    private static final Method NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR = findFactoryMethod();
+
+    private VirtualThreads() {
+    }
+
+    public static boolean isSupported() {
+        return NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR != null;
+    }
+
+    /**
+     * @return a new executor service which runs each task on its own virtual thread
+     * @throws UnsupportedOperationException if the running JVM does not support virtual threads
+     */
+    public static ExecutorService newExecutorService() {
+        if (!isSupported()) {
+            throw new UnsupportedOperationException("Virtual threads require Java 21 or newer");
+        }
+        try {
+            return (ExecutorService) NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR.invoke(null);
+        } catch (Exception e) {
+            throw new RuntimeException("Could not create virtual thread executor", e);
+        }
+    }
+
+    private static Method findFactoryMethod() {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            // on Java 19 and 20 virtual threads are a preview feature and fail unless enabled
+            ((ExecutorService) method.invoke(null)).shutdown();
+            return method;
+        } catch (Exception | LinkageError e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package no.systek.dataflow.metrics;
+
+import java.util.function.IntSupplier;
+
+import no.systek.dataflow.PriorityTaskQueue;
+import no.systek.dataflow.Step;
+
+/**
+ * Listener for metrics of steps and of the task queue. All methods are called from the worker threads, often
+ * concurrently, and must therefore be thread-safe and fast.
+ * <p>
+ * Nothing is measured unless a listener other than {@link #NONE} is set on the
+ * {@link no.systek.dataflow.PriorityTaskQueue}, so leaving the instrumentation in place costs close to nothing.
+ * <p>
+ * See {@link StatisticsMetrics}, {@link JmxMetrics}, {@link MicrometerMetrics} and {@link Tracer}
+ */
+public interface DataflowMetrics {
+
+    DataflowMetrics NONE = new DataflowMetrics() {
+    };
+
+    /**
+     * A new execution of the graph of the step is about to start. The suppliers read the current number of inputs in
+     * the mailbox of the step and of its scheduled tasks in that execution; they can be read from any thread for as
+     * long as the task queue of the execution is referenced.
+     */
+    default void executionStarted(Step<?, ?> step, PriorityTaskQueue taskQueue, IntSupplier mailboxDepth,
+            IntSupplier scheduledJobs) {
+    }
+
+    /**
+     * A new input has been queued in the mailbox of the step
+     */
+    default void inputQueued(Step<?, ?> step, int mailboxDepth) {
+    }
+
+    /**
+     * An input has been discarded because the mailbox of the step was full
+     */
+    default void inputDropped(Step<?, ?> step) {
+    }
+
+    /**
+     * A task for the step has been scheduled, which is now one of "scheduledJobs" running or waiting tasks out of the
+     * "maxParallelExecution" the step allows
+     */
+    default void taskScheduled(Step<?, ?> step, int scheduledJobs, int maxParallelExecution) {
+    }
+
+    /**
+     * The step starts processing one input, on the current thread
+     */
+    default void runStarted(Step<?, ?> step) {
+    }
+
+    /**
+     * The step has processed one input. The time includes handing over the outputs to the child steps, and running
+     * the child steps which are fused with this step.
+     */
+    default void runCompleted(Step<?, ?> step, long nanos) {
+    }
+
+    /**
+     * The step has produced an output
+     */
+    default void outputProduced(Step<?, ?> step) {
+    }
+
+    /**
+     * A task is added to the task queue, by the current thread
+     *
+     * @return any value which is handed back to {@link #taskStarted} when the task starts
+     */
+    default Object taskAdded(int priority) {
+        return null;
+    }
+
+    /**
+     * A task of the task queue has started after waiting in the queue for the given time
+     *
+     * @param addedBy the value returned by {@link #taskAdded} for this task
+     */
+    default void taskStarted(int priority, long queuedNanos, Object addedBy) {
+    }
+
+    /**
+     * The task queue has moved on to dispatch tasks of another priority
+     */
+    default void priorityChanged(int fromPriority, int toPriority) {
+    }
+}
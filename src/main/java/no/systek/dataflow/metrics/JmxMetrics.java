@@ -0,0 +1,47 @@
+package no.systek.dataflow.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import no.systek.dataflow.Step;
+
+/**
+ * Exposes the statistics of each step as an MBean named
+ * "no.systek.dataflow:type=Step,graph=[graphName],name=[stepName]-[n]", registered the first time the step reports
+ * anything
+ */
+public class JmxMetrics extends StatisticsMetrics {
+    private static final Logger LOGGER = LoggerFactory.getLogger(JmxMetrics.class);
+
+    private final MBeanServer mBeanServer;
+    private final String graphName;
+    private final AtomicInteger stepCounter = new AtomicInteger();
+
+    public JmxMetrics(String graphName) {
+        this(ManagementFactory.getPlatformMBeanServer(), graphName);
+    }
+
+    public JmxMetrics(MBeanServer mBeanServer, String graphName) {
+        this.mBeanServer = mBeanServer;
+        this.graphName = graphName;
+    }
+
+    @Override
+    protected StepStatistics newStatistics(Step<?, ?> step) {
+        StepStatistics statistics = super.newStatistics(step);
+        try {
+            mBeanServer.registerMBean(statistics, new ObjectName("no.systek.dataflow:type=Step"
+                + ",graph=" + ObjectName.quote(graphName)
+                + ",name=" + ObjectName.quote(step.getName() + "-" + stepCounter.incrementAndGet())));
+        } catch (Exception e) {
+            LOGGER.warn("Could not register MBean for step " + step.getName(), e);
+        }
+        return statistics;
+    }
+}
@@ -0,0 +1,118 @@
+package no.systek.dataflow.metrics;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntSupplier;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import no.systek.dataflow.PriorityTaskQueue;
+import no.systek.dataflow.Step;
+
+/**
+ * Reports to a Micrometer registry, tagged by graph, step name and step id. The id is the step name with a suffix
+ * which is unique within this instance, like the MBean names of {@link JmxMetrics}, so steps with the same name get
+ * meters of their own.
+ * <ul>
+ * <li>dataflow.step.mailbox (gauge, inputs in the mailbox summed over the running executions)</li>
+ * <li>dataflow.step.scheduled (gauge, scheduled tasks summed over the running executions)</li>
+ * <li>dataflow.step.run (timer with percentile histogram)</li>
+ * <li>dataflow.step.outputs (counter)</li>
+ * <li>dataflow.step.dropped (counter)</li>
+ * <li>dataflow.queue.wait (timer, tagged by priority)</li>
+ * </ul>
+ * Micrometer is an optional dependency of this library, it has to be added by the application.
+ */
+public class MicrometerMetrics implements DataflowMetrics {
+
+    private final MeterRegistry registry;
+    private final String graphName;
+    private final Map<Step<?, ?>, StepMeters> steps = new ConcurrentHashMap<>();
+    private final Map<Integer, Timer> queueWaits = new ConcurrentHashMap<>();
+    private final AtomicInteger stepCounter = new AtomicInteger();
+
+    public MicrometerMetrics(MeterRegistry registry, String graphName) {
+        this.registry = registry;
+        this.graphName = graphName;
+    }
+
+    @Override
+    public void executionStarted(Step<?, ?> step, PriorityTaskQueue taskQueue, IntSupplier mailboxDepth,
+            IntSupplier scheduledJobs) {
+        metersOf(step).executionStarted(taskQueue, mailboxDepth, scheduledJobs);
+    }
+
+    @Override
+    public void inputDropped(Step<?, ?> step) {
+        metersOf(step).dropped.increment();
+    }
+
+    @Override
+    public void runCompleted(Step<?, ?> step, long nanos) {
+        metersOf(step).runTime.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void outputProduced(Step<?, ?> step) {
+        metersOf(step).outputs.increment();
+    }
+
+    @Override
+    public void taskStarted(int priority, long queuedNanos, Object addedBy) {
+        Timer timer = queueWaits.get(priority);
+        if (timer == null) {
+            timer = queueWaits.computeIfAbsent(priority, p -> Timer.builder("dataflow.queue.wait")
+                .tags("graph", graphName, "priority", String.valueOf(p))
+                .register(registry));
+        }
+        timer.record(queuedNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private StepMeters metersOf(Step<?, ?> step) {
+        StepMeters meters = steps.get(step);
+        return meters != null ? meters : steps.computeIfAbsent(step, StepMeters::new);
+    }
+
+    private class StepMeters {
+        // the counters of each execution, dropped once its task queue is not referenced anymore
+        private final Map<PriorityTaskQueue, IntSupplier> mailboxDepths = new WeakHashMap<>();
+        private final Map<PriorityTaskQueue, IntSupplier> scheduledJobs = new WeakHashMap<>();
+        private final Timer runTime;
+        private final Counter outputs;
+        private final Counter dropped;
+
+        StepMeters(Step<?, ?> step) {
+            Tags tags = Tags.of("graph", graphName, "step", step.getName(),
+                "id", step.getName() + "-" + stepCounter.incrementAndGet());
+            Gauge.builder("dataflow.step.mailbox", this, meters -> meters.sum(meters.mailboxDepths))
+                .tags(tags)
+                .register(registry);
+            Gauge.builder("dataflow.step.scheduled", this, meters -> meters.sum(meters.scheduledJobs))
+                .tags(tags)
+                .register(registry);
+            runTime = Timer.builder("dataflow.step.run").tags(tags).publishPercentileHistogram().register(registry);
+            outputs = registry.counter("dataflow.step.outputs", tags);
+            dropped = registry.counter("dataflow.step.dropped", tags);
+        }
+
+        synchronized void executionStarted(PriorityTaskQueue taskQueue, IntSupplier mailboxDepth,
+                IntSupplier scheduledJobs) {
+            mailboxDepths.put(taskQueue, mailboxDepth);
+            this.scheduledJobs.put(taskQueue, scheduledJobs);
+        }
+
+        synchronized double sum(Map<PriorityTaskQueue, IntSupplier> counters) {
+            int sum = 0;
+            for (IntSupplier counter : counters.values()) {
+                sum += counter.getAsInt();
+            }
+            return sum;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package no.systek.dataflow.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import no.systek.dataflow.Step;
+
+/**
+ * Keeps statistics per step and the time tasks have waited in the task queue per priority, in memory. One instance
+ * can be shared by many executions; it keeps a reference to each step it has seen.
+ */
+public class StatisticsMetrics implements DataflowMetrics {
+
+    private final Map<Step<?, ?>, StepStatistics> steps = new ConcurrentHashMap<>();
+    private final Map<Integer, Histogram> queueWaits = new ConcurrentHashMap<>();
+
+    @Override
+    public void inputQueued(Step<?, ?> step, int mailboxDepth) {
+        statisticsOf(step).inputQueued(mailboxDepth);
+    }
+
+    @Override
+    public void inputDropped(Step<?, ?> step) {
+        statisticsOf(step).inputDropped();
+    }
+
+    @Override
+    public void taskScheduled(Step<?, ?> step, int scheduledJobs, int maxParallelExecution) {
+        statisticsOf(step).taskScheduled(scheduledJobs, maxParallelExecution);
+    }
+
+    @Override
+    public void runCompleted(Step<?, ?> step, long nanos) {
+        statisticsOf(step).runCompleted(nanos);
+    }
+
+    @Override
+    public void outputProduced(Step<?, ?> step) {
+        statisticsOf(step).outputProduced();
+    }
+
+    @Override
+    public void taskStarted(int priority, long queuedNanos, Object addedBy) {
+        Histogram histogram = queueWaits.get(priority);
+        if (histogram == null) {
+            histogram = queueWaits.computeIfAbsent(priority, p -> new Histogram());
+        }
+        histogram.record(queuedNanos);
+    }
+
+    /**
+     * @return the statistics of the step, or null if nothing has been reported for it yet
+     */
+    public StepStatistics getStatistics(Step<?, ?> step) {
+        return steps.get(step);
+    }
+
+    public Map<Step<?, ?>, StepStatistics> getAllStatistics() {
+        return steps;
+    }
+
+    /**
+     * @return the time tasks have waited in the task queue at the given priority, in nanoseconds
+     */
+    public Histogram getQueueWait(int priority) {
+        return queueWaits.computeIfAbsent(priority, p -> new Histogram());
+    }
+
+    protected StepStatistics statisticsOf(Step<?, ?> step) {
+        StepStatistics statistics = steps.get(step);
+        return statistics != null ? statistics : steps.computeIfAbsent(step, this::newStatistics);
+    }
+
+    protected StepStatistics newStatistics(Step<?, ?> step) {
+        return new StepStatistics(step.getName());
+    }
+}
@@ -0,0 +1,113 @@
+package no.systek.dataflow.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Statistics of one step, collected by {@link StatisticsMetrics}. Mailbox depth and scheduled jobs are the values
+ * last reported by any execution.
+ */
+public class StepStatistics implements StepStatisticsMBean {
+    private final String stepName;
+    private final long createdNanos = System.nanoTime();
+    private final Histogram runTimes = new Histogram();
+    private final AtomicLong outputs = new AtomicLong();
+    private final AtomicLong droppedInputs = new AtomicLong();
+    private volatile int mailboxDepth;
+    private volatile int scheduledJobs;
+    private volatile int maxParallelExecution;
+
+    StepStatistics(String stepName) {
+        this.stepName = stepName;
+    }
+
+    void inputQueued(int mailboxDepth) {
+        this.mailboxDepth = mailboxDepth;
+    }
+
+    void inputDropped() {
+        droppedInputs.incrementAndGet();
+    }
+
+    void taskScheduled(int scheduledJobs, int maxParallelExecution) {
+        this.scheduledJobs = scheduledJobs;
+        this.maxParallelExecution = maxParallelExecution;
+    }
+
+    void runCompleted(long nanos) {
+        runTimes.record(nanos);
+    }
+
+    void outputProduced() {
+        outputs.incrementAndGet();
+    }
+
+    public Histogram getRunTimes() {
+        return runTimes;
+    }
+
+    @Override
+    public String getStepName() {
+        return stepName;
+    }
+
+    @Override
+    public int getMailboxDepth() {
+        return mailboxDepth;
+    }
+
+    @Override
+    public int getScheduledJobs() {
+        return scheduledJobs;
+    }
+
+    @Override
+    public int getMaxParallelExecution() {
+        return maxParallelExecution;
+    }
+
+    @Override
+    public long getDroppedInputs() {
+        return droppedInputs.get();
+    }
+
+    @Override
+    public long getRuns() {
+        return runTimes.getCount();
+    }
+
+    @Override
+    public long getOutputs() {
+        return outputs.get();
+    }
+
+    @Override
+    public double getOutputsPerSecond() {
+        long elapsed = System.nanoTime() - createdNanos;
+        return elapsed <= 0 ? 0 : outputs.get() * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+    }
+
+    @Override
+    public long getRunTimeMean() {
+        return micros(runTimes.getMean());
+    }
+
+    @Override
+    public long getRunTime50thPercentile() {
+        return micros(runTimes.getPercentile(50));
+    }
+
+    @Override
+    public long getRunTime99thPercentile() {
+        return micros(runTimes.getPercentile(99));
+    }
+
+    @Override
+    public long getRunTimeMax() {
+        return micros(runTimes.getMax());
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+}
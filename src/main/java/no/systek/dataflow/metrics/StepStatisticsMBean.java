@@ -0,0 +1,31 @@
+package no.systek.dataflow.metrics;
+
+/**
+ * Statistics of one step, as exposed by {@link JmxMetrics}. Times are in microseconds.
+ */
+public interface StepStatisticsMBean {
+
+    String getStepName();
+
+    int getMailboxDepth();
+
+    int getScheduledJobs();
+
+    int getMaxParallelExecution();
+
+    long getDroppedInputs();
+
+    long getRuns();
+
+    long getOutputs();
+
+    double getOutputsPerSecond();
+
+    long getRunTimeMean();
+
+    long getRunTime50thPercentile();
+
+    long getRunTime99thPercentile();
+
+    long getRunTimeMax();
+}
@@ -0,0 +1,285 @@
+package no.systek.dataflow.metrics;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import no.systek.dataflow.Step;
+
+/**
+ * Records a timeline of an execution: when each step ran on which thread, how long tasks waited in the task queue
+ * and when the task queue moved between priorities. Events are kept in a fixed size ring buffer, so only the most
+ * recent events are kept when it overflows.
+ * <p>
+ * Each run of a step remembers the run which produced its input (the run which added its task to the task queue,
+ * or the parent run for fused steps). Following those links back from the last run which produced an output gives
+ * the critical path: the chain of runs which decided how long the execution took.
+ * <p>
+ * Use a new tracer for each execution which should be analysed, and read it after the execution has completed.
+ */
+public class Tracer implements DataflowMetrics {
+
+    private final long startedNanos = System.nanoTime();
+    private final AtomicReferenceArray<TraceEvent> events;
+    private final int mask;
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong runIds = new AtomicLong();
+    private final ThreadLocal<ThreadState> threadState = ThreadLocal.withInitial(ThreadState::new);
+
+    public Tracer() {
+        this(1 << 16);
+    }
+
+    /**
+     * @param capacity the number of events to keep, rounded up to the next power of two
+     */
+    public Tracer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.events = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+    }
+
+    @Override
+    public void runStarted(Step<?, ?> step) {
+        ThreadState state = threadState.get();
+        long cause = state.currentRun != null ? state.currentRun.id : state.taskCause;
+        state.currentRun = new RunFrame(runIds.incrementAndGet(), cause, System.nanoTime(), state.currentRun);
+    }
+
+    @Override
+    public void runCompleted(Step<?, ?> step, long nanos) {
+        ThreadState state = threadState.get();
+        RunFrame frame = state.currentRun;
+        if (frame == null) {
+            return;
+        }
+        state.currentRun = frame.parent;
+        if (frame.parent == null) {
+            // tasks added after the run, e.g. by afterRun(), are caused by it as well
+            state.taskCause = frame.id;
+        }
+        add(new RunEvent(frame.id, frame.cause, step.getName(), threadName(), frame.started - startedNanos,
+            System.nanoTime() - startedNanos, frame.outputs));
+    }
+
+    @Override
+    public void outputProduced(Step<?, ?> step) {
+        RunFrame frame = threadState.get().currentRun;
+        if (frame != null) {
+            frame.outputs++;
+        }
+    }
+
+    @Override
+    public Object taskAdded(int priority) {
+        ThreadState state = threadState.get();
+        return state.currentRun != null ? state.currentRun.id : state.taskCause;
+    }
+
+    @Override
+    public void taskStarted(int priority, long queuedNanos, Object addedBy) {
+        threadState.get().taskCause = addedBy == null ? 0 : (Long) addedBy;
+        long now = System.nanoTime() - startedNanos;
+        add(new TraceEvent("queued (priority " + priority + ")", "queue", threadName(), now - queuedNanos, now));
+    }
+
+    @Override
+    public void priorityChanged(int fromPriority, int toPriority) {
+        long now = System.nanoTime() - startedNanos;
+        add(new TraceEvent("priority " + fromPriority + " -> " + toPriority, "priority", threadName(), now, now));
+    }
+
+    /**
+     * @return the recorded events, ordered by start time
+     */
+    public List<TraceEvent> getEvents() {
+        List<TraceEvent> result = new ArrayList<>();
+        long last = sequence.get();
+        for (long i = Math.max(0, last - events.length()); i < last; i++) {
+            TraceEvent event = events.get((int) (i & mask));
+            if (event != null) {
+                result.add(event);
+            }
+        }
+        result.sort((a, b) -> Long.compare(a.start, b.start));
+        return result;
+    }
+
+    /**
+     * @return the runs on the critical path, from the first to the last
+     */
+    public List<RunEvent> getCriticalPath() {
+        Map<Long, RunEvent> runs = new HashMap<>();
+        RunEvent last = null;
+        for (TraceEvent event : getEvents()) {
+            if (event instanceof RunEvent) {
+                RunEvent run = (RunEvent) event;
+                runs.put(run.id, run);
+                if (last == null || isLater(run, last)) {
+                    last = run;
+                }
+            }
+        }
+
+        LinkedList<RunEvent> path = new LinkedList<>();
+        for (RunEvent run = last; run != null; run = runs.get(run.cause)) {
+            path.addFirst(run);
+        }
+        return path;
+    }
+
+    /**
+     * @return a readable report of the critical path: each run with its duration and how long it waited after the
+     * run which produced its input
+     */
+    public String getCriticalPathReport() {
+        StringBuilder report = new StringBuilder("Critical path:\n");
+        RunEvent previous = null;
+        for (RunEvent run : getCriticalPath()) {
+            report.append(String.format("  %-30s ran %8dus, waited %8dus, on %s%n",
+                run.name,
+                micros(run.end - run.start),
+                micros(previous == null ? run.start : run.start - previous.end),
+                run.thread));
+            previous = run;
+        }
+        return report.toString();
+    }
+
+    /**
+     * Writes all events in the Chrome trace event format, which can be opened with chrome://tracing or
+     * https://ui.perfetto.dev
+     */
+    public void writeChromeTrace(Writer writer) {
+        Map<String, Integer> threadIds = new HashMap<>();
+        try {
+            writer.write("{\"traceEvents\":[");
+            boolean first = true;
+            for (TraceEvent event : getEvents()) {
+                if (!first) {
+                    writer.write(",");
+                }
+                first = false;
+                Integer tid = threadIds.computeIfAbsent(event.thread, t -> threadIds.size() + 1);
+                writer.write("\n{\"name\":\"" + escape(event.name) + "\",\"cat\":\"" + event.category + "\"");
+                if (event.start == event.end) {
+                    writer.write(",\"ph\":\"i\",\"s\":\"g\"");
+                } else {
+                    writer.write(",\"ph\":\"X\",\"dur\":" + micros(event.end - event.start));
+                }
+                writer.write(",\"ts\":" + micros(event.start) + ",\"pid\":1,\"tid\":" + tid);
+                if (event instanceof RunEvent) {
+                    RunEvent run = (RunEvent) event;
+                    writer.write(",\"args\":{\"run\":" + run.id + ",\"cause\":" + run.cause
+                        + ",\"outputs\":" + run.outputs + "}");
+                }
+                writer.write("}");
+            }
+            for (Map.Entry<String, Integer> thread : threadIds.entrySet()) {
+                writer.write(",\n{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":" + thread.getValue()
+                    + ",\"args\":{\"name\":\"" + escape(thread.getKey()) + "\"}}");
+            }
+            writer.write("\n]}\n");
+            writer.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static boolean isLater(RunEvent run, RunEvent last) {
+        // runs without outputs, like cleanups, did not hold up the result
+        if ((run.outputs > 0) != (last.outputs > 0)) {
+            return run.outputs > 0;
+        }
+        return run.end > last.end;
+    }
+
+    private void add(TraceEvent event) {
+        events.set((int) (sequence.getAndIncrement() & mask), event);
+    }
+
+    private static String threadName() {
+        return Thread.currentThread().getName();
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    private static String escape(String s) {
+        StringBuilder escaped = new StringBuilder(s.length());
+        for (char c : s.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                escaped.append('\\').append(c);
+            } else if (c < 0x20) {
+                escaped.append(String.format("\\u%04x", (int) c));
+            } else {
+                escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    /**
+     * Something which happened during the execution, times are in nanoseconds since the tracer was created
+     */
+    public static class TraceEvent {
+        public final String name;
+        public final String category;
+        public final String thread;
+        public final long start;
+        public final long end;
+
+        TraceEvent(String name, String category, String thread, long start, long end) {
+            this.name = name;
+            this.category = category;
+            this.thread = thread;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    /**
+     * One run of a step
+     */
+    public static class RunEvent extends TraceEvent {
+        public final long id;
+        public final long cause;
+        public final int outputs;
+
+        RunEvent(long id, long cause, String step, String thread, long start, long end, int outputs) {
+            super(step, "step", thread, start, end);
+            this.id = id;
+            this.cause = cause;
+            this.outputs = outputs;
+        }
+    }
+
+    private static class RunFrame {
+        private final long id;
+        private final long cause;
+        private final long started;
+        private final RunFrame parent;
+        private int outputs;
+
+        RunFrame(long id, long cause, long started, RunFrame parent) {
+            this.id = id;
+            this.cause = cause;
+            this.started = started;
+            this.parent = parent;
+        }
+    }
+
+    private static class ThreadState {
+        private RunFrame currentRun;
+        private long taskCause;
+    }
+}
@@ -0,0 +1,133 @@
+package no.systek.dataflow.remote;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import no.systek.dataflow.ExecutionStep;
+import no.systek.dataflow.PriorityTaskQueue;
+
+/**
+ * Tail step of a partition of a graph, sending its inputs in batches to the {@link RemoteSource} listening on a
+ * channel of another process.
+ * <p>
+ * A batch is sent as soon as it is full. Like the cleanup of a collector, a task at the graph depth of this step
+ * sends the rest once this partition has become idle, and tells the receiving partition that no more inputs are on
+ * their way for now. This also happens for an execution which has not sent anything at all.
+ * <p>
+ * Sending blocks the task of this step, and with it a thread of the executor, while the receiver has not
+ * acknowledged enough of the previous batches, that is for as long as the receiving process is behind. Execute a
+ * partition with a remote sink on an executor of its own, so the waiting task cannot take a thread which other
+ * graphs, or a receiving partition in the same process, need to make progress.
+ * <p>
+ * A partition with a remote sink should only be executed once at a time, since the executions would share the
+ * channel.
+ */
+public class RemoteSink<T> extends ExecutionStep<T, Void> {
+    private final Object CLEANUP = new Object();
+
+    private final Transport transport;
+    private final String address;
+    private final String channel;
+    private final int batchSize;
+    private final int maxInFlight;
+    private Transport.Sender sender;
+
+    /**
+     * @param address     the address of the receiving process, see {@link Transport#getAddress()}
+     * @param batchSize   the number of inputs to send together
+     * @param maxInFlight the number of batches which may be sent before the first of them has been processed
+     */
+    public RemoteSink(String name, Transport transport, String address, String channel, int batchSize,
+            int maxInFlight) {
+        super(name, 1);
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1");
+        }
+        this.transport = transport;
+        this.address = address;
+        this.channel = channel;
+        this.batchSize = batchSize;
+        this.maxInFlight = maxInFlight;
+    }
+
+    @Override
+    protected void run(T input, Consumer<Void> onResult, PriorityTaskQueue taskQueue) {
+        Buffer buffer = getState(taskQueue, Buffer::new);
+        if (input == CLEANUP) {
+            buffer.cleanupScheduled = false;
+            buffer.busy = false;
+            send(buffer, true);
+            return;
+        }
+
+        buffer.busy = true;
+        buffer.inputs.add(input);
+        if (buffer.inputs.size() >= batchSize) {
+            send(buffer, false);
+        }
+    }
+
+    /**
+     * The receiver waits for the idle marker even if this execution never sends anything, so the cleanup is scheduled
+     * right away
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    protected void onExecutionStarted(PriorityTaskQueue taskQueue) {
+        Buffer buffer = getState(taskQueue, Buffer::new);
+        buffer.cleanupScheduled = true;
+        scheduleCleanup(taskQueue, (T) CLEANUP);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected void afterRun(PriorityTaskQueue taskQueue) {
+        Buffer buffer = getState(taskQueue, Buffer::new);
+        if (buffer.busy && !buffer.cleanupScheduled) {
+            buffer.cleanupScheduled = true;
+            scheduleCleanup(taskQueue, (T) CLEANUP);
+        }
+    }
+
+    /**
+     * Closes the connection to the receiving process
+     */
+    public synchronized void close() throws IOException {
+        if (sender != null) {
+            sender.close();
+            sender = null;
+        }
+    }
+
+    private void send(Buffer buffer, boolean idle) {
+        try {
+            sender().send(buffer.inputs, idle);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not send to " + channel + " at " + address, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while sending to " + channel + " at " + address, e);
+        } finally {
+            buffer.inputs.clear();
+        }
+    }
+
+    private synchronized Transport.Sender sender() throws IOException {
+        if (sender == null) {
+            sender = transport.connect(address, channel, maxInFlight);
+        }
+        return sender;
+    }
+
+    /**
+     * Inputs waiting to be sent during one execution; only accessed by one task at a time
+     */
+    private static class Buffer {
+        private final List<Object> inputs = new ArrayList<>();
+        private boolean busy;
+        private boolean cleanupScheduled;
+    }
+}
@@ -0,0 +1,92 @@
+package no.systek.dataflow.remote;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+import no.systek.dataflow.Pipeline;
+import no.systek.dataflow.PriorityTaskQueue;
+import no.systek.dataflow.Step;
+
+/**
+ * Root step of a partition of a graph, emitting the inputs which a {@link RemoteSink} in another process sends to
+ * its channel. The partition runs as a {@link Pipeline}, see {@link #listen}.
+ * <p>
+ * Each batch is acknowledged once this step has emitted its inputs, so when children with a bounded mailbox suspend
+ * this step, the sender runs out of batches in flight and blocks: backpressure reaches across processes.
+ * <p>
+ * While the sending partition is busy, the pipeline is held (see {@link Pipeline#hold}), so collectors and joiners
+ * of this partition are only cleaned up once the sending partition has become idle as well, and a pipeline closed
+ * with {@link Pipeline#close} waits for it. Each channel must have exactly one sending partition, and the
+ * partitions must not depend on each other in a loop.
+ */
+public class RemoteSource<T> extends Step<RemoteSource.Batch, T> {
+
+    public RemoteSource(String name) {
+        // one batch at a time keeps the inputs in the order they were sent
+        super(name, 1);
+    }
+
+    /**
+     * Feeds the batches sent to the given channel to this step of the given pipeline. The pipeline is held until the
+     * sending partition reports that it is idle for the first time. Must be called once for each pipeline this step
+     * is part of, which does not complete before.
+     */
+    public void listen(Transport transport, String channel, Pipeline<?> pipeline) {
+        AtomicBoolean busy = new AtomicBoolean(true);
+        pipeline.hold();
+        // held by the pipeline from now on
+        pipeline.getTaskQueue().release();
+        transport.bind(channel, (inputs, idle, ack) -> {
+            try {
+                if (inputs.isEmpty()) {
+                    ack.run();
+                } else {
+                    if (busy.compareAndSet(false, true)) {
+                        pipeline.hold();
+                    }
+                    pipeline.feed(this, new Batch(inputs, ack));
+                }
+            } finally {
+                // the batch has been posted above, so it keeps the pipeline busy from now on
+                if (idle && busy.compareAndSet(true, false)) {
+                    pipeline.release();
+                }
+            }
+        });
+    }
+
+    /**
+     * Holds the execution until {@link #listen} is called, so a partition does not report itself idle to the next one
+     * before it has heard from the previous one
+     */
+    @Override
+    protected void onExecutionStarted(PriorityTaskQueue taskQueue) {
+        taskQueue.hold();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected void run(Batch input, Consumer<T> onResult) {
+        try {
+            for (Object next : input.inputs) {
+                onResult.accept((T) next);
+            }
+        } finally {
+            input.ack.run();
+        }
+    }
+
+    /**
+     * Inputs received together
+     */
+    public static final class Batch {
+        private final List<Object> inputs;
+        private final Runnable ack;
+
+        Batch(List<Object> inputs, Runnable ack) {
+            this.inputs = inputs;
+            this.ack = ack;
+        }
+    }
+}
@@ -0,0 +1,540 @@
+package no.systek.dataflow.remote;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link Transport} over TCP. Received batches are read by one NIO selector thread and handed to the bound receivers
+ * by a pool of threads of the transport: the batches of one connection one after the other, in the order they were
+ * sent, so a slow receiver only delays its own connection. Batches arriving before their receiver is bound are kept
+ * until it is. Each {@link Sender} has its own connection and a thread reading the acknowledgements sent back on it.
+ * <p>
+ * Batches are framed by their length and serialized with Java serialization, so the inputs must be
+ * {@link Serializable} and their classes available in both processes. Frames larger than {@link #MAX_FRAME_SIZE}
+ * are rejected.
+ * <p>
+ * The transport does not authenticate its peers: it must only be reachable by trusted processes, which is why it
+ * listens on the loopback interface unless another address is given. As a second line of defence, received frames
+ * may only contain classes which are allowed: by default the classes in java.lang, java.util, java.math and
+ * java.time (without their sub-packages) and arrays of them or of primitives. Further classes, like the types of
+ * the inputs, have to be allowed explicitly, see {@link #TcpTransport(InetSocketAddress, Predicate)}.
+ */
+@SuppressWarnings("WeakerAccess")
+public class TcpTransport implements Transport {
+    private static final Logger LOGGER = LoggerFactory.getLogger(TcpTransport.class);
+
+    /**
+     * Maximum size of a serialized batch in bytes
+     */
+    public static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+
+    private static final String[] DEFAULT_PACKAGES = { "java.lang.", "java.util.", "java.math.", "java.time." };
+
+    private final ServerSocketChannel server;
+    private final Selector selector;
+    private final String address;
+    private final Map<String, Receiver> receivers = new ConcurrentHashMap<>();
+    private final Map<String, List<Connection>> pending = new ConcurrentHashMap<>();
+    private final Set<AutoCloseable> connections = ConcurrentHashMap.newKeySet();
+    private final Predicate<String> allowedClasses;
+    private final ExecutorService receiving;
+    private volatile boolean closed;
+
+    /**
+     * Listens on the loopback interface
+     *
+     * @param port the port to listen on, or 0 for any free port
+     */
+    public TcpTransport(int port) throws IOException {
+        this(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    }
+
+    /**
+     * Listens on the given address, which should only be reachable from trusted processes
+     */
+    public TcpTransport(InetSocketAddress bindAddress) throws IOException {
+        this(bindAddress, name -> false);
+    }
+
+    /**
+     * @param allowedClasses decides by their name which classes, besides the default ones, received batches may
+     *                       contain
+     */
+    public TcpTransport(InetSocketAddress bindAddress, Predicate<String> allowedClasses) throws IOException {
+        this.allowedClasses = allowedClasses;
+        this.server = ServerSocketChannel.open();
+        this.server.bind(bindAddress);
+        this.server.configureBlocking(false);
+        this.selector = Selector.open();
+        this.server.register(selector, SelectionKey.OP_ACCEPT);
+
+        InetAddress host = server.socket().getInetAddress();
+        this.address = (host.isAnyLocalAddress() ? InetAddress.getLocalHost() : host).getHostAddress()
+                + ":" + server.socket().getLocalPort();
+
+        int port = server.socket().getLocalPort();
+        this.receiving = Executors.newCachedThreadPool(task -> {
+            Thread thread = new Thread(task, "dataflow-tcp-receive-" + port);
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        Thread thread = new Thread(this::select, "dataflow-tcp-" + port);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public String getAddress() {
+        return address;
+    }
+
+    @Override
+    public Sender connect(String address, String channel, int maxInFlight) throws IOException {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("Max batches in flight must be at least 1");
+        }
+        int colon = address.lastIndexOf(':');
+        if (colon < 0) {
+            throw new IllegalArgumentException("Address must be host:port, got " + address);
+        }
+        SocketChannel socket = SocketChannel.open(
+                new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1))));
+        TcpSender sender = new TcpSender(socket, channel, maxInFlight);
+        connections.add(sender);
+        return sender;
+    }
+
+    @Override
+    public void bind(String channel, Receiver receiver) {
+        List<Connection> waiting;
+        synchronized (pending) {
+            if (receivers.putIfAbsent(channel, receiver) != null) {
+                throw new IllegalStateException("A receiver is already bound to " + channel);
+            }
+            waiting = pending.remove(channel);
+        }
+        if (waiting != null) {
+            waiting.forEach(this::startDelivering);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        for (AutoCloseable connection : connections) {
+            try {
+                connection.close();
+            } catch (Exception e) {
+                LOGGER.debug("Could not close connection", e);
+            }
+        }
+        selector.close();
+        server.close();
+        receiving.shutdown();
+    }
+
+    private void select() {
+        try {
+            while (!closed) {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    if (key.isWritable()) {
+                        writeAcks(key);
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        read(key);
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (!closed) {
+                LOGGER.error("Transport stopped receiving", e);
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel socket = server.accept();
+        if (socket != null) {
+            socket.configureBlocking(false);
+            Connection connection = new Connection(socket, this::isAllowed);
+            connections.add(connection);
+            connection.key = socket.register(selector, SelectionKey.OP_READ, connection);
+        }
+    }
+
+    private void read(SelectionKey key) {
+        Connection connection = (Connection) key.attachment();
+        try {
+            Frame frame;
+            while ((frame = connection.read()) != null) {
+                deliver(frame, connection);
+            }
+        } catch (IOException | ClassNotFoundException e) {
+            if (!(e instanceof EOFException)) {
+                LOGGER.error("Could not read from " + connection.socket, e);
+            }
+            drop(key, connection);
+        }
+    }
+
+    private void writeAcks(SelectionKey key) {
+        Connection connection = (Connection) key.attachment();
+        try {
+            connection.writeAcks();
+        } catch (IOException e) {
+            LOGGER.debug("Could not acknowledge batch, the sender has gone away", e);
+            drop(key, connection);
+        }
+    }
+
+    private void drop(SelectionKey key, Connection connection) {
+        key.cancel();
+        connections.remove(connection);
+        connection.close();
+    }
+
+    private boolean isAllowed(String name) {
+        // arrays are allowed if their component type is
+        int dimensions = 0;
+        while (name.charAt(dimensions) == '[') {
+            dimensions++;
+        }
+        if (dimensions > 0) {
+            if (name.charAt(dimensions) != 'L') {
+                return true;
+            }
+            name = name.substring(dimensions + 1, name.length() - 1);
+        }
+        if (name.equals(Frame.class.getName())) {
+            return true;
+        }
+        for (String prefix : DEFAULT_PACKAGES) {
+            if (name.startsWith(prefix) && name.indexOf('.', prefix.length()) < 0) {
+                return true;
+            }
+        }
+        return allowedClasses.test(name);
+    }
+
+    private void deliver(Frame frame, Connection connection) {
+        synchronized (connection) {
+            connection.received.add(frame);
+            if (connection.delivering) {
+                return;
+            }
+            connection.delivering = true;
+        }
+        startDelivering(connection);
+    }
+
+    private void startDelivering(Connection connection) {
+        try {
+            receiving.execute(() -> deliverReceived(connection));
+        } catch (RejectedExecutionException e) {
+            LOGGER.debug("Transport has been closed, dropping received batches", e);
+        }
+    }
+
+    /**
+     * Hands the received batches of the connection to their receivers until there are none left, or until one has
+     * no receiver yet: then the connection waits for {@link #bind}, which delivers again
+     */
+    private void deliverReceived(Connection connection) {
+        while (true) {
+            Frame frame;
+            Receiver receiver;
+            synchronized (connection) {
+                frame = connection.received.peek();
+                if (frame == null) {
+                    connection.delivering = false;
+                    return;
+                }
+                receiver = receivers.get(frame.channel);
+                if (receiver == null) {
+                    synchronized (pending) {
+                        receiver = receivers.get(frame.channel);
+                        if (receiver == null) {
+                            pending.computeIfAbsent(frame.channel, c -> new ArrayList<>()).add(connection);
+                            return;
+                        }
+                    }
+                }
+                connection.received.poll();
+            }
+            try {
+                receiver.onBatch(frame.inputs, frame.idle, connection::ack);
+            } catch (RuntimeException e) {
+                LOGGER.error("Receiver of " + frame.channel + " failed", e);
+            }
+        }
+    }
+
+    private static byte[] serialize(Frame frame) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(frame);
+        }
+        if (bytes.size() > MAX_FRAME_SIZE) {
+            throw new IOException("Batch of " + bytes.size() + " bytes is larger than " + MAX_FRAME_SIZE
+                    + ", send smaller batches");
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * One batch, as it is sent over the connection after its length
+     */
+    private static class Frame implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String channel;
+        private final ArrayList<Object> inputs;
+        private final boolean idle;
+
+        Frame(String channel, List<Object> inputs, boolean idle) {
+            this.channel = channel;
+            this.inputs = new ArrayList<>(inputs);
+            this.idle = idle;
+        }
+    }
+
+    /**
+     * Reads objects of allowed classes only
+     */
+    private static class FilteringObjectInputStream extends ObjectInputStream {
+        private final Predicate<String> allowed;
+
+        FilteringObjectInputStream(InputStream in, Predicate<String> allowed) throws IOException {
+            super(in);
+            this.allowed = allowed;
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+            if (!allowed.test(desc.getName())) {
+                throw new InvalidClassException(desc.getName(), "Class is not allowed by the transport");
+            }
+            return super.resolveClass(desc);
+        }
+
+        @Override
+        protected Class<?> resolveProxyClass(String[] interfaces) throws IOException {
+            throw new InvalidClassException("Proxy classes are not allowed by the transport");
+        }
+    }
+
+    /**
+     * Receiving end of a connection, only read and written by the selector thread. The received batches wait for the
+     * delivering thread, guarded by the connection. Acknowledgements are counted by the threads processing the
+     * batches, and written by the selector thread once the socket has room for them.
+     */
+    private static class Connection implements AutoCloseable {
+        private final SocketChannel socket;
+        private final Predicate<String> allowedClasses;
+        private final ByteBuffer length = ByteBuffer.allocate(4);
+        private final ByteBuffer acks = ByteBuffer.allocate(4);
+        private final AtomicInteger pendingAcks = new AtomicInteger();
+        private final Queue<Frame> received = new ArrayDeque<>();
+        private boolean delivering;
+        private volatile SelectionKey key;
+        private ByteBuffer body;
+
+        Connection(SocketChannel socket, Predicate<String> allowedClasses) {
+            this.socket = socket;
+            this.allowedClasses = allowedClasses;
+            this.acks.limit(0);
+        }
+
+        /**
+         * @return the next frame, or null if it has not been received completely yet
+         */
+        Frame read() throws IOException, ClassNotFoundException {
+            if (body == null) {
+                if (socket.read(length) < 0) {
+                    throw new EOFException();
+                }
+                if (length.hasRemaining()) {
+                    return null;
+                }
+                length.flip();
+                int size = length.getInt();
+                length.clear();
+                if (size < 0 || size > MAX_FRAME_SIZE) {
+                    throw new IOException("Frame of " + size + " bytes is larger than " + MAX_FRAME_SIZE);
+                }
+                body = ByteBuffer.allocate(size);
+            }
+            if (socket.read(body) < 0) {
+                throw new EOFException();
+            }
+            if (body.hasRemaining()) {
+                return null;
+            }
+            try (ObjectInputStream in = new FilteringObjectInputStream(new ByteArrayInputStream(body.array()),
+                    allowedClasses)) {
+                return (Frame) in.readObject();
+            } finally {
+                body = null;
+            }
+        }
+
+        /**
+         * Lets the sender send one more batch. Called from any thread, the selector thread writes it.
+         */
+        void ack() {
+            pendingAcks.incrementAndGet();
+            try {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                key.selector().wakeup();
+            } catch (CancelledKeyException e) {
+                LOGGER.debug("Could not acknowledge batch, the sender has gone away", e);
+            }
+        }
+
+        /**
+         * Writes the pending acknowledgements as one count, and stops waiting for room in the socket once there are
+         * none left
+         */
+        void writeAcks() throws IOException {
+            while (true) {
+                if (!acks.hasRemaining()) {
+                    int count = pendingAcks.getAndSet(0);
+                    if (count == 0) {
+                        key.interestOps(SelectionKey.OP_READ);
+                        // an acknowledgement counted before the interest was reset would not be written otherwise
+                        if (pendingAcks.get() == 0) {
+                            return;
+                        }
+                        continue;
+                    }
+                    acks.clear();
+                    acks.putInt(count);
+                    acks.flip();
+                }
+                socket.write(acks);
+                if (acks.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                LOGGER.debug("Could not close connection", e);
+            }
+        }
+    }
+
+    /**
+     * Sending end of a connection, with a thread releasing a permit for each acknowledgement
+     */
+    private class TcpSender implements Sender {
+        private final SocketChannel socket;
+        private final String channel;
+        private final Semaphore inFlight;
+        private volatile boolean broken;
+
+        TcpSender(SocketChannel socket, String channel, int maxInFlight) {
+            this.socket = socket;
+            this.channel = channel;
+            this.inFlight = new Semaphore(maxInFlight);
+
+            Thread thread = new Thread(this::readAcks, "dataflow-tcp-acks-" + channel);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @Override
+        public void send(List<Object> inputs, boolean idle) throws IOException, InterruptedException {
+            byte[] frame = serialize(new Frame(channel, inputs, idle));
+            inFlight.acquire();
+            if (broken) {
+                inFlight.release();
+                throw new IOException("Connection for " + channel + " has been closed");
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(4 + frame.length).putInt(frame.length).put(frame);
+            buffer.flip();
+            synchronized (this) {
+                while (buffer.hasRemaining()) {
+                    socket.write(buffer);
+                }
+            }
+        }
+
+        private void readAcks() {
+            ByteBuffer ack = ByteBuffer.allocate(4);
+            try {
+                while (socket.read(ack) >= 0) {
+                    if (!ack.hasRemaining()) {
+                        ack.flip();
+                        inFlight.release(ack.getInt());
+                        ack.clear();
+                    }
+                }
+            } catch (IOException e) {
+                if (!closed) {
+                    LOGGER.debug("Connection for " + channel + " has been closed", e);
+                }
+            }
+            // wake up senders waiting for an acknowledgement which never comes
+            broken = true;
+            inFlight.release(Integer.MAX_VALUE / 2);
+        }
+
+        @Override
+        public void close() throws IOException {
+            connections.remove(this);
+            socket.close();
+        }
+    }
+}
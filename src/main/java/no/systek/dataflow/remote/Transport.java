@@ -0,0 +1,56 @@
+package no.systek.dataflow.remote;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Carries batches of inputs between the partitions of a step graph running in different processes, see
+ * {@link RemoteSink} and {@link RemoteSource}. Each batch goes to a named channel at the address of the receiving
+ * process.
+ * <p>
+ * Implementations must deliver the batches of one sender in the order they were sent, and limit the batches in
+ * flight: each batch has to be acknowledged by the receiver before the sender can send more than "maxInFlight"
+ * further batches, which is what propagates backpressure from the receiving to the sending process.
+ * <p>
+ * See {@link TcpTransport}
+ */
+public interface Transport extends AutoCloseable {
+
+    /**
+     * @return the address other processes can send to this process with
+     */
+    String getAddress();
+
+    /**
+     * Opens a channel to send batches to the receiver bound to the given channel name at the given address
+     */
+    Sender connect(String address, String channel, int maxInFlight) throws IOException;
+
+    /**
+     * Lets the given receiver handle all batches sent to the given channel name at this process
+     */
+    void bind(String channel, Receiver receiver);
+
+    @Override
+    void close() throws IOException;
+
+    interface Sender extends AutoCloseable {
+        /**
+         * Sends a batch of inputs, blocking while "maxInFlight" batches have not been acknowledged yet
+         *
+         * @param idle true if the sending partition has become idle after this batch, which may be empty then
+         */
+        void send(List<Object> inputs, boolean idle) throws IOException, InterruptedException;
+
+        @Override
+        void close() throws IOException;
+    }
+
+    interface Receiver {
+        /**
+         * Handles a batch received on a channel. The sender may only send further batches once "ack" has been run
+         * for enough of the previous ones.
+         */
+        void onBatch(List<Object> inputs, boolean idle, Runnable ack);
+    }
+}
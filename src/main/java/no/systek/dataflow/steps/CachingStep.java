@@ -0,0 +1,99 @@
+package no.systek.dataflow.steps;
+
+import java.util.function.Consumer;
+
+import no.systek.dataflow.ExecutionStep;
+import no.systek.dataflow.PriorityTaskQueue;
+
+/**
+ * Memoizes a deterministic function of its input in a {@link ResultCache}: the output for an input whose key has
+ * been seen before is taken from the cache instead of being computed again, also across executions.
+ * <p>
+ * An input whose key is being computed by another task, possibly of another execution, does not block a thread
+ * either: the task returns right away, and the task computing the result emits it for the waiting input as well.
+ * Until then the execution of the waiting input is held (see {@link PriorityTaskQueue#hold}) so it does not become
+ * idle. If the computation fails, the waiting inputs are posted to this step again and one of them computes the
+ * result in its own execution.
+ * <p>
+ * Outputs of waiting inputs are posted to the children from the thread of the computing task, so this step is never
+ * fused with its parent or child.
+ */
+public abstract class CachingStep<K, I, O> extends ExecutionStep<I, O> {
+
+    private final ResultCache<K, O> cache;
+
+    protected CachingStep(String name, int maxParallelExecution, ResultCache<K, O> cache) {
+        super(name, maxParallelExecution);
+        this.cache = cache;
+    }
+
+    protected abstract K key(I input);
+
+    protected abstract O execute(I input);
+
+    public ResultCache<K, O> getCache() {
+        return cache;
+    }
+
+    @Override
+    protected void run(I input, Consumer<O> onResult, PriorityTaskQueue taskQueue) {
+        K key = key(input);
+        ResultCache.Entry<O> entry = cache.acquire(key, new Waiter(input, onResult, taskQueue));
+        if (entry == null) {
+            // waiting for another task
+            return;
+        }
+        if (entry.isDone()) {
+            onResult.accept(entry.value());
+            return;
+        }
+
+        O output = null;
+        boolean computed = false;
+        try {
+            output = execute(input);
+            computed = true;
+        } finally {
+            if (!computed) {
+                // also for errors, the entry must not stay unfinished in the shared cache
+                cache.fail(key, entry);
+            }
+        }
+        cache.complete(entry, output);
+        onResult.accept(output);
+    }
+
+    /**
+     * An input of one execution waiting for the result of another task
+     */
+    private class Waiter implements ResultCache.Waiter<O> {
+        private final I input;
+        private final Consumer<O> onResult;
+        private final PriorityTaskQueue taskQueue;
+
+        Waiter(I input, Consumer<O> onResult, PriorityTaskQueue taskQueue) {
+            this.input = input;
+            this.onResult = onResult;
+            this.taskQueue = taskQueue;
+        }
+
+        @Override
+        public void waiting() {
+            taskQueue.hold();
+        }
+
+        @Override
+        public void done(O value, boolean failed) {
+            // the output or the retry keeps the execution busy before it is released
+            try {
+                if (!failed) {
+                    onResult.accept(value);
+                } else {
+                    post(input, taskQueue);
+                }
+            } finally {
+                taskQueue.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package no.systek.dataflow.steps;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import no.systek.dataflow.PriorityTaskQueue;
+
+/**
+ * Data-parallel {@link ListStep}: the input list is split into chunks which are processed by separate tasks, and
+ * the outputs of all chunks are emitted in the order of the input list once the last chunk is done.
+ * <p>
+ * {@link #execute} is called once per chunk, so it must not depend on seeing the whole list. The first chunk is
+ * processed by the task of this step itself, the other chunks are added as tasks at the highest priority, which
+ * means they are forked to the worker's own deque when executing on a {@link java.util.concurrent.ForkJoinPool}.
+ * No thread waits for the chunks: the task finishing the last chunk emits the outputs.
+ * <p>
+ * If {@link #execute} fails for a chunk, the outputs of the other chunks are still emitted, and the failure is
+ * reported like the failure of any task. Unlike a plain {@link ListStep}, which emits nothing if the list fails,
+ * only the outputs of the failed chunk are missing then.
+ * <p>
+ * For the metrics (see {@link no.systek.dataflow.metrics.DataflowMetrics}), a run of this step is the task
+ * processing the first chunk: its run time does not include the other chunks, and outputs emitted by another chunk
+ * task are counted for the step, but are not part of that run or of any other run in a
+ * {@link no.systek.dataflow.metrics.Tracer}.
+ * <p>
+ * With a chunk size of 0, the chunk size adapts to the size of the list, such that there are about four chunks
+ * per available processor.
+ */
+public abstract class ChunkedListStep<I, O> extends ListStep<I, O> {
+    private static final int CHUNKS_PER_PROCESSOR = 4;
+
+    private final int chunkSize;
+
+    /**
+     * @param chunkSize the number of inputs per chunk, or 0 to choose it from the size of each list
+     */
+    protected ChunkedListStep(String name, int chunkSize) {
+        super(name);
+        if (chunkSize < 0) {
+            throw new IllegalArgumentException("Chunk size cannot be negative");
+        }
+        this.chunkSize = chunkSize;
+    }
+
+    @Override
+    protected void run(List<I> input, Consumer<O> onResult, PriorityTaskQueue taskQueue) {
+        int size = chunkSize(input.size());
+        int chunks = (input.size() + size - 1) / size;
+        if (chunks <= 1) {
+            run(input, onResult);
+            return;
+        }
+
+        Chunks<I, O> all = new Chunks<>(input, size, chunks, onResult);
+        for (int chunk = 1; chunk < chunks; chunk++) {
+            final int index = chunk;
+            taskQueue.addTask(PriorityTaskQueue.HIGHEST_PRIORITY, pq -> runChunk(all, index));
+        }
+        runChunk(all, 0);
+    }
+
+    private void runChunk(Chunks<I, O> all, int index) {
+        int from = index * all.size;
+        RuntimeException failure = null;
+        try {
+            all.outputs[index] = execute(all.input.subList(from, Math.min(from + all.size, all.input.size())));
+        } catch (RuntimeException e) {
+            failure = e;
+        }
+        if (all.remaining.decrementAndGet() == 0) {
+            // the outputs of the other chunks are visible after the decrement; failed chunks have none
+            for (List<O> outputs : all.outputs) {
+                if (outputs != null) {
+                    outputs.forEach(all.onResult);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private int chunkSize(int inputs) {
+        if (chunkSize > 0) {
+            return chunkSize;
+        }
+        int chunks = Runtime.getRuntime().availableProcessors() * CHUNKS_PER_PROCESSOR;
+        return Math.max(1, (inputs + chunks - 1) / chunks);
+    }
+
+    /**
+     * One input list being processed in chunks
+     */
+    private static class Chunks<I, O> {
+        private final List<I> input;
+        private final int size;
+        private final List<O>[] outputs;
+        private final AtomicInteger remaining;
+        private final Consumer<O> onResult;
+
+        @SuppressWarnings("unchecked")
+        Chunks(List<I> input, int size, int chunks, Consumer<O> onResult) {
+            this.input = input;
+            this.size = size;
+            this.outputs = (List<O>[]) new List<?>[chunks];
+            this.remaining = new AtomicInteger(chunks);
+            this.onResult = onResult;
+        }
+    }
+}
@@ -1,35 +1,58 @@
 package no.systek.dataflow.steps;
 
-import java.util.LinkedList;
+import java.io.File;
+import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.function.Consumer;
 
+import no.systek.dataflow.ExecutionStep;
 import no.systek.dataflow.PriorityTaskQueue;
-import no.systek.dataflow.Step;
 
-public class CollectorStep<T> extends Step<T, List<T>> {
+public class CollectorStep<T> extends ExecutionStep<T, List<T>> {
     private final T CLEANUP = (T) "CLEANUP";
 
-    private final List<T> items;
     private final int bufferSize;
-    private boolean scheduledCleanup;
+    private volatile int maxInMemory = Integer.MAX_VALUE;
+    private volatile File spillDirectory;
 
     public CollectorStep(String name, int bufferSize) {
         super(name, 1);
         this.bufferSize = bufferSize;
-        this.items = new LinkedList<>();
+    }
+
+    /**
+     * Keeps at most "maxInMemory" collected items on the heap while collecting, further items are serialized to a
+     * temporary file in the given directory (or the default temporary directory if null) and read back when the
+     * items are pushed. The items must then be {@link java.io.Serializable}. Note that the pushed list itself is
+     * still built in memory, use the buffer size to push large collections in chunks.
+     * <p>
+     * Must be configured before the graph is executed.
+     */
+    public void setSpilling(int maxInMemory, File spillDirectory) {
+        if (maxInMemory < 1) {
+            throw new IllegalArgumentException("Max items in memory must be at least 1");
+        }
+        this.maxInMemory = maxInMemory;
+        this.spillDirectory = spillDirectory;
+    }
+
+    @Override
+    protected void run(T input, Consumer<List<T>> onResult, PriorityTaskQueue taskQueue) {
+        runWithTaskQueue(input, onResult, taskQueue);
     }
 
     @Override
     protected void run(T input, Consumer<List<T>> onResult) {
+        Buffer<T> buffer = getState(currentTaskQueue(), this::newBuffer);
         if (CLEANUP.equals(input)) {
-            scheduledCleanup = false;
-            pushItems(onResult);
+            buffer.scheduledCleanup = false;
+            pushItems(buffer, onResult);
         } else {
-            if (items.size() >= bufferSize) {
-                pushItems(onResult);
+            if (buffer.items.size() >= bufferSize) {
+                pushItems(buffer, onResult);
             }
-            items.add(input);
+            buffer.items.add(input);
         }
     }
 
@@ -40,15 +63,66 @@ public class CollectorStep<T> extends Step<T, List<T>> {
         // the items it got so far.
 
         // do this only once, the the first item is scheduled
-        if (!items.isEmpty() && !scheduledCleanup) {
-            scheduledCleanup = true;
-            priorityTaskQueue.addTask(getGraphDepth(), pq2 -> post(CLEANUP, pq2));
+        Buffer<T> buffer = getState(priorityTaskQueue, this::newBuffer);
+        if (!buffer.items.isEmpty() && !buffer.scheduledCleanup) {
+            buffer.scheduledCleanup = true;
+            scheduleCleanup(priorityTaskQueue, CLEANUP);
         }
     }
 
-    private void pushItems(Consumer<List<T>> onResult) {
-        List<T> items = new LinkedList<>(this.items);
-        this.items.clear();
+    @Override
+    protected void onExecutionFinished(PriorityTaskQueue taskQueue) {
+        // a failed or stopped execution may leave items behind, together with their spill file
+        Buffer<T> buffer = getState(taskQueue, () -> null);
+        if (buffer != null) {
+            buffer.items.clear();
+        }
+    }
+
+    /**
+     * Only without spilling: the spilled items would have to be read back onto the heap for each checkpoint
+     */
+    @Override
+    protected boolean supportsCheckpoints() {
+        return maxInMemory == Integer.MAX_VALUE;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected Serializable saveState(Object state) {
+        return ((Buffer<T>) state).items.copy();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected Object restoreState(Serializable saved) {
+        Buffer<T> buffer = newBuffer();
+        ((List<T>) saved).forEach(buffer.items::add);
+        return buffer;
+    }
+
+    private void pushItems(Buffer<T> buffer, Consumer<List<T>> onResult) {
+        List<T> items = new ArrayList<>(buffer.items.size());
+        T item;
+        while ((item = buffer.items.poll()) != null) {
+            items.add(item);
+        }
         onResult.accept(items);
     }
+
+    private Buffer<T> newBuffer() {
+        return new Buffer<>(new SpillingQueue<>(maxInMemory, spillDirectory));
+    }
+
+    /**
+     * Items collected during one execution; only accessed by one task at a time
+     */
+    private static class Buffer<T> {
+        private final SpillingQueue<T> items;
+        private boolean scheduledCleanup;
+
+        Buffer(SpillingQueue<T> items) {
+            this.items = items;
+        }
+    }
 }
@@ -1,23 +1,32 @@
 package no.systek.dataflow.steps;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
+import java.util.function.Function;
 
+import no.systek.dataflow.ExecutionStep;
 import no.systek.dataflow.PriorityTaskQueue;
 import no.systek.dataflow.Step;
+import no.systek.dataflow.metrics.DataflowMetrics;
 
 /**
  * Conditional step for 2-way step dependencies which can route dynamically depending on the conditional
  * output
  * <p>
+ * Outputs are routed by a consumer which is created once per execution, so routing does not allocate anything.
+ * <p>
  * See CappuccinoTest
  */
 @SuppressWarnings("WeakerAccess")
-public abstract class ConditionalStep<I, O> extends Step<I, O> {
+public abstract class ConditionalStep<I, O> extends ExecutionStep<I, O> {
+
+    private static final Function<Object, Object> NEW_ROUTER = key -> ((RouterKey<?>) key).step.new Router();
 
-    private final List<Step<O, ?>> falseChildren = new LinkedList<>();
+    private final List<Step<O, ?>> falseChildren = new ArrayList<>();
+    private final List<Step<O, ?>> allChildren = new ArrayList<>();
+    private final RouterKey<O> routerKey = new RouterKey<>(this);
 
     public ConditionalStep(String name, int maxParallelExecution) {
         super(name, maxParallelExecution);
@@ -26,19 +35,19 @@ public abstract class ConditionalStep<I, O> extends Step<I, O> {
     protected abstract void run(I input, BiConsumer<Boolean, O> onResult);
 
     @Override
-    protected final void run(I input, Consumer<O> onResult) {
-        run(input, (condition, result) -> onResult.accept((O) new ConditionalResult<>(condition, result)));
+    @SuppressWarnings("unchecked")
+    protected final void run(I input, Consumer<O> onResult, PriorityTaskQueue taskQueue) {
+        // outputs are routed here directly instead of through onResult, which only knows of one list of children
+        Router router = (Router) taskQueue.getExecutionState(routerKey, NEW_ROUTER);
+        if (router.taskQueue == null) {
+            router.taskQueue = taskQueue;
+        }
+        run(input, router);
     }
 
     @Override
-    protected final void onOutputAvailable(O output, PriorityTaskQueue pq) {
-        ConditionalResult<O> r = (ConditionalResult<O>) output;
-        List<Step<O, ?>> next = r.condition ? getChildren() : falseChildren;
-        if (next.isEmpty()) {
-            onResult.accept(r.output);
-        } else {
-            next.forEach(s -> s.post(r.output, pq));
-        }
+    protected List<Step<O, ?>> getAllChildren() {
+        return allChildren;
     }
 
     @Override
@@ -51,6 +60,8 @@ public abstract class ConditionalStep<I, O> extends Step<I, O> {
             @Override
             public void link(Step<O, ?> child) {
                 getChildren().add(child);
+                allChildren.add(child);
+                invalidatePlans();
             }
         };
     }
@@ -60,17 +71,45 @@ public abstract class ConditionalStep<I, O> extends Step<I, O> {
             @Override
             public void link(Step<O, ?> child) {
                 falseChildren.add(child);
+                allChildren.add(child);
+                invalidatePlans();
             }
         };
     }
 
-    private static class ConditionalResult<O> {
-        private final boolean condition;
-        private final O output;
+    /**
+     * Key of the router in the execution state, separate from the step so it does not clash with the step's own
+     * state
+     */
+    private static class RouterKey<O> {
+        private final ConditionalStep<?, O> step;
+
+        RouterKey(ConditionalStep<?, O> step) {
+            this.step = step;
+        }
+    }
+
+    /**
+     * Posts the outputs of one execution to the children of the branch taken
+     */
+    private class Router implements BiConsumer<Boolean, O> {
+        private volatile PriorityTaskQueue taskQueue;
 
-        ConditionalResult(boolean condition, O output) {
-            this.condition = condition;
-            this.output = output;
+        @Override
+        public void accept(Boolean condition, O output) {
+            PriorityTaskQueue pq = taskQueue;
+            DataflowMetrics metrics = pq.getMetrics();
+            if (metrics != DataflowMetrics.NONE) {
+                metrics.outputProduced(ConditionalStep.this);
+            }
+            List<Step<O, ?>> next = condition ? getChildren() : falseChildren;
+            if (next.isEmpty()) {
+                publishResult(output, pq);
+            } else {
+                for (int i = 0; i < next.size(); i++) {
+                    next.get(i).post(output, pq);
+                }
+            }
         }
     }
 }
@@ -0,0 +1,26 @@
+package no.systek.dataflow.steps;
+
+/**
+ * Like {@link CollectorStep}, but collects double values into a double[] instead of boxing each value in a list
+ */
+public class DoubleCollectorStep extends NumericCollectorStep<Double, double[]> {
+
+    public DoubleCollectorStep(String name, int bufferSize) {
+        super(name, bufferSize);
+    }
+
+    @Override
+    final double[] newArray(int length) {
+        return new double[length];
+    }
+
+    @Override
+    final int length(double[] values) {
+        return values.length;
+    }
+
+    @Override
+    final void set(double[] values, int index, Double value) {
+        values[index] = value;
+    }
+}
@@ -0,0 +1,39 @@
+package no.systek.dataflow.steps;
+
+import java.util.function.Consumer;
+
+import no.systek.dataflow.PriorityTaskQueue;
+import no.systek.dataflow.Step;
+
+/**
+ * Step which maps double values to double values. A chain of fused double steps (see {@link Step#isFusable()})
+ * hands the values from step to step without boxing them in between; values going through a mailbox are boxed, see
+ * {@link NumericStep}.
+ * <p>
+ * Like other fusable steps, double steps must not keep any state.
+ */
+public abstract class DoubleStep extends NumericStep<Double> {
+
+    protected DoubleStep(String name, int maxParallelExecution) {
+        super(name, maxParallelExecution);
+    }
+
+    protected abstract double apply(double value);
+
+    @Override
+    final Double applyBoxed(Double input) {
+        return apply(input);
+    }
+
+    @Override
+    final void runChain(Double input, Consumer<Double> onResult, PriorityTaskQueue taskQueue) {
+        double value = apply(input);
+        DoubleStep last = this;
+        Step<Double, ?> next;
+        while ((next = last.getFusedChild()) instanceof DoubleStep) {
+            last = (DoubleStep) next;
+            value = last.apply(value);
+        }
+        emit(last, value, onResult, taskQueue);
+    }
+}
@@ -0,0 +1,26 @@
+package no.systek.dataflow.steps;
+
+/**
+ * Like {@link CollectorStep}, but collects int values into an int[] instead of boxing each value in a list
+ */
+public class IntCollectorStep extends NumericCollectorStep<Integer, int[]> {
+
+    public IntCollectorStep(String name, int bufferSize) {
+        super(name, bufferSize);
+    }
+
+    @Override
+    final int[] newArray(int length) {
+        return new int[length];
+    }
+
+    @Override
+    final int length(int[] values) {
+        return values.length;
+    }
+
+    @Override
+    final void set(int[] values, int index, Integer value) {
+        values[index] = value;
+    }
+}
@@ -0,0 +1,39 @@
+package no.systek.dataflow.steps;
+
+import java.util.function.Consumer;
+
+import no.systek.dataflow.PriorityTaskQueue;
+import no.systek.dataflow.Step;
+
+/**
+ * Step which maps int values to int values. A chain of fused int steps (see {@link Step#isFusable()}) hands the
+ * values from step to step without boxing them in between; values going through a mailbox are boxed, see
+ * {@link NumericStep}.
+ * <p>
+ * Like other fusable steps, int steps must not keep any state.
+ */
+public abstract class IntStep extends NumericStep<Integer> {
+
+    protected IntStep(String name, int maxParallelExecution) {
+        super(name, maxParallelExecution);
+    }
+
+    protected abstract int apply(int value);
+
+    @Override
+    final Integer applyBoxed(Integer input) {
+        return apply(input);
+    }
+
+    @Override
+    final void runChain(Integer input, Consumer<Integer> onResult, PriorityTaskQueue taskQueue) {
+        int value = apply(input);
+        IntStep last = this;
+        Step<Integer, ?> next;
+        while ((next = last.getFusedChild()) instanceof IntStep) {
+            last = (IntStep) next;
+            value = last.apply(value);
+        }
+        emit(last, value, onResult, taskQueue);
+    }
+}
@@ -0,0 +1,268 @@
+package no.systek.dataflow.steps;
+
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import no.systek.dataflow.ExecutionStep;
+import no.systek.dataflow.PriorityTaskQueue;
+import no.systek.dataflow.Step;
+
+/**
+ * Joins left and right inputs with the same key. Inputs waiting for their counterpart are kept in hash indexed
+ * buffers, and each input is joined at most once: with the oldest waiting input of the other side which has the same
+ * key.
+ * <p>
+ * Inputs which are never matched are, depending on the join mode, either dropped or joined with null once they are
+ * evicted or when the graph has become idle. To keep the buffers bounded when joining large streams, the oldest
+ * inputs can be evicted by count or age, see {@link #setEviction}. Eviction by age is checked each time this step
+ * runs.
+ */
+public abstract class KeyedJoinStep<K, Ileft, Iright, O> extends ExecutionStep<Object, O> {
+
+    public enum JoinMode {
+        /**
+         * Only inputs which are matched produce an output
+         */
+        INNER,
+        /**
+         * Unmatched left inputs are joined with null
+         */
+        LEFT_OUTER,
+        /**
+         * Unmatched right inputs are joined with null
+         */
+        RIGHT_OUTER,
+        /**
+         * Unmatched inputs of both sides are joined with null
+         */
+        FULL_OUTER
+    }
+
+    private final Object CLEANUP = new Object();
+
+    private final JoinMode mode;
+    private volatile int maxWaiting = Integer.MAX_VALUE;
+    private volatile long maxAgeNanos = Long.MAX_VALUE;
+
+    protected KeyedJoinStep(String name, JoinMode mode) {
+        super(name, 1);
+        this.mode = mode;
+    }
+
+    protected abstract boolean isLeft(Object input);
+
+    protected abstract K leftKey(Ileft left);
+
+    protected abstract K rightKey(Iright right);
+
+    /**
+     * @param left  the left input, or null if an unmatched right input is joined in an outer join
+     * @param right the right input, or null if an unmatched left input is joined in an outer join
+     */
+    protected abstract O join(Ileft left, Iright right);
+
+    /**
+     * Evicts the oldest waiting inputs of a side once there are more than "maxWaiting" of them, or once they have
+     * waited longer than "maxAge". Must be configured before the graph is executed.
+     */
+    public void setEviction(int maxWaiting, long maxAge, TimeUnit unit) {
+        if (maxWaiting < 1) {
+            throw new IllegalArgumentException("Max waiting inputs must be at least 1");
+        }
+        this.maxWaiting = maxWaiting;
+        this.maxAgeNanos = unit.toNanos(maxAge);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected void run(Object input, Consumer<O> onResult, PriorityTaskQueue taskQueue) {
+        Buffers<K> buffers = getState(taskQueue, Buffers::new);
+        long now = System.nanoTime();
+
+        if (CLEANUP.equals(input)) {
+            buffers.cleanupScheduled = false;
+            evict(buffers.left, 0, now, mode == JoinMode.LEFT_OUTER || mode == JoinMode.FULL_OUTER, true, onResult);
+            evict(buffers.right, 0, now, mode == JoinMode.RIGHT_OUTER || mode == JoinMode.FULL_OUTER, false, onResult);
+            return;
+        }
+
+        if (isLeft(input)) {
+            Ileft left = (Ileft) input;
+            Entry<K> match = buffers.right.take(leftKey(left));
+            if (match != null) {
+                onResult.accept(join(left, (Iright) match.value));
+            } else {
+                buffers.left.add(leftKey(left), left, now);
+            }
+        } else {
+            Iright right = (Iright) input;
+            Entry<K> match = buffers.left.take(rightKey(right));
+            if (match != null) {
+                onResult.accept(join((Ileft) match.value, right));
+            } else {
+                buffers.right.add(rightKey(right), right, now);
+            }
+        }
+
+        evict(buffers.left, maxWaiting, now, mode == JoinMode.LEFT_OUTER || mode == JoinMode.FULL_OUTER, true,
+            onResult);
+        evict(buffers.right, maxWaiting, now, mode == JoinMode.RIGHT_OUTER || mode == JoinMode.FULL_OUTER, false,
+            onResult);
+    }
+
+    @Override
+    protected void afterRun(PriorityTaskQueue taskQueue) {
+        Buffers<K> buffers = getState(taskQueue, Buffers::new);
+        if ((buffers.left.size > 0 || buffers.right.size > 0) && !buffers.cleanupScheduled) {
+            buffers.cleanupScheduled = true;
+            scheduleCleanup(taskQueue, CLEANUP);
+        }
+    }
+
+    @Override
+    protected boolean supportsCheckpoints() {
+        return true;
+    }
+
+    /**
+     * Saves the waiting inputs of both sides in the order they arrived, as key and value pairs. When restored, they
+     * count as having arrived at that time for the eviction by age.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    protected Serializable saveState(Object state) {
+        Buffers<K> buffers = (Buffers<K>) state;
+        ArrayList<ArrayList<Object>> saved = new ArrayList<>(2);
+        saved.add(buffers.left.save());
+        saved.add(buffers.right.save());
+        return saved;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected Object restoreState(Serializable saved) {
+        List<List<Object>> sides = (List<List<Object>>) saved;
+        Buffers<K> buffers = new Buffers<>();
+        long now = System.nanoTime();
+        buffers.left.restore(sides.get(0), now);
+        buffers.right.restore(sides.get(1), now);
+        return buffers;
+    }
+
+    public void dependsOnLeft(DependencyCreator<Object, Ileft> left) {
+        addParent((Step<?, Object>) left.step);
+        left.link((Step<Ileft, ?>) this);
+    }
+
+    public void dependsOnRight(DependencyCreator<Object, Iright> right) {
+        addParent((Step<?, Object>) right.step);
+        right.link((Step<Iright, ?>) this);
+    }
+
+    @Override
+    public void dependsOn(DependencyCreator<Object, Object> dependency) {
+        throw new IllegalArgumentException(
+            "Cannot use dependsOn() on KeyedJoinStep, use dependsOnLeft/dependsOnRight instead");
+    }
+
+    /**
+     * Evicts the oldest inputs of the given side while there are more than "keep" or they are too old
+     */
+    @SuppressWarnings("unchecked")
+    private void evict(Side<K> side, int keep, long now, boolean outer, boolean isLeft, Consumer<O> onResult) {
+        Entry<K> oldest;
+        while ((oldest = side.oldest()) != null && (side.size > keep || now - oldest.added > maxAgeNanos)) {
+            side.take(oldest.key);
+            if (outer) {
+                onResult.accept(isLeft ? join((Ileft) oldest.value, null) : join(null, (Iright) oldest.value));
+            }
+        }
+    }
+
+    /**
+     * Inputs of one side waiting for their counterpart. Entries are indexed by key and, for eviction, kept in the
+     * order they arrived in; matched entries are removed from the arrival order lazily.
+     */
+    private static class Side<K> {
+        private final Map<K, ArrayDeque<Entry<K>>> byKey = new HashMap<>();
+        private final ArrayDeque<Entry<K>> arrivals = new ArrayDeque<>();
+        private int size;
+
+        void add(K key, Object value, long now) {
+            Entry<K> entry = new Entry<>(key, value, now);
+            byKey.computeIfAbsent(key, k -> new ArrayDeque<>()).add(entry);
+            arrivals.add(entry);
+            size++;
+        }
+
+        Entry<K> take(K key) {
+            ArrayDeque<Entry<K>> entries = byKey.get(key);
+            if (entries == null) {
+                return null;
+            }
+            Entry<K> entry = entries.poll();
+            if (entries.isEmpty()) {
+                byKey.remove(key);
+            }
+            entry.taken = true;
+            size--;
+            if (arrivals.size() > 2 * size + 64) {
+                arrivals.removeIf(e -> e.taken);
+            }
+            return entry;
+        }
+
+        ArrayList<Object> save() {
+            ArrayList<Object> saved = new ArrayList<>(2 * size);
+            for (Entry<K> entry : arrivals) {
+                if (!entry.taken) {
+                    saved.add(entry.key);
+                    saved.add(entry.value);
+                }
+            }
+            return saved;
+        }
+
+        @SuppressWarnings("unchecked")
+        void restore(List<Object> saved, long now) {
+            for (int i = 0; i < saved.size(); i += 2) {
+                add((K) saved.get(i), saved.get(i + 1), now);
+            }
+        }
+
+        Entry<K> oldest() {
+            while (!arrivals.isEmpty() && arrivals.peek().taken) {
+                arrivals.poll();
+            }
+            return arrivals.peek();
+        }
+    }
+
+    private static class Entry<K> {
+        private final K key;
+        private final Object value;
+        private final long added;
+        private boolean taken;
+
+        Entry(K key, Object value, long added) {
+            this.key = key;
+            this.value = value;
+            this.added = added;
+        }
+    }
+
+    /**
+     * Waiting inputs of both sides during one execution; only accessed by one task at a time
+     */
+    private static class Buffers<K> {
+        private final Side<K> left = new Side<>();
+        private final Side<K> right = new Side<>();
+        private boolean cleanupScheduled;
+    }
+}
@@ -0,0 +1,122 @@
+package no.systek.dataflow.steps;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+import no.systek.dataflow.ExecutionStep;
+import no.systek.dataflow.PriorityTaskQueue;
+
+/**
+ * Processes inputs with the same key one after the other, in the order they were posted, while inputs with
+ * different keys are processed in parallel (up to "maxParallelExecution" at the same time).
+ * <p>
+ * Inputs are sorted into a fixed number of stripes by the hash of their key. Only the input which finds its stripe
+ * idle goes through the mailbox, and the task started for it processes the inputs of the stripe until it is empty,
+ * so there is one task per burst of inputs of a stripe. Keys which end up in the same stripe are therefore processed
+ * serially as well; use more stripes to make that less likely.
+ * <p>
+ * Only the BACKPRESSURE overflow policy is supported, inputs cannot be dropped once assigned to a stripe. Since the
+ * mailbox only holds one input per busy stripe, its capacity limits the number of stripes waiting for a task, not
+ * the number of inputs.
+ */
+public abstract class KeyedStep<K, I, O> extends ExecutionStep<I, O> {
+
+    private final int stripes;
+
+    protected KeyedStep(String name, int maxParallelExecution) {
+        this(name, maxParallelExecution, 256);
+    }
+
+    /**
+     * @param stripes the number of stripes, rounded up to the next power of two
+     */
+    protected KeyedStep(String name, int maxParallelExecution, int stripes) {
+        super(name, maxParallelExecution);
+        if (stripes < 1) {
+            throw new IllegalArgumentException("Number of stripes must be at least 1");
+        }
+        this.stripes = Integer.highestOneBit(Math.max(2, stripes) - 1) << 1;
+    }
+
+    protected abstract K key(I input);
+
+    /**
+     * Processes one input, never concurrently with another input with the same key
+     */
+    protected abstract void run(K key, I input, Consumer<O> onResult);
+
+    @Override
+    public void setMailboxCapacity(int capacity, OverflowPolicy policy) {
+        if (policy != OverflowPolicy.BACKPRESSURE) {
+            throw new IllegalArgumentException("Keyed steps only support the BACKPRESSURE overflow policy");
+        }
+        super.setMailboxCapacity(capacity, policy);
+    }
+
+    @Override
+    public void post(I input, PriorityTaskQueue taskQueue) {
+        if (input != null) {
+            // the order of the stripe is the order the inputs are processed in, so it has to be decided here and not
+            // when the task starts
+            Stripe<I> stripe = stripeOf(input, taskQueue);
+            stripe.inputs.offer(input);
+            if (!stripe.scheduled.compareAndSet(false, true)) {
+                // the task of the stripe has not finished yet and takes this input as well
+                return;
+            }
+        }
+        super.post(input, taskQueue);
+    }
+
+    @Override
+    protected void run(I input, Consumer<O> onResult, PriorityTaskQueue taskQueue) {
+        Stripe<I> stripe = stripeOf(input, taskQueue);
+        boolean drained = false;
+        try {
+            do {
+                I next;
+                while ((next = stripe.inputs.poll()) != null) {
+                    run(key(next), next, onResult);
+                }
+                stripe.scheduled.set(false);
+                // an input might have been added after the last poll, but before the flag was reset
+            } while (!stripe.inputs.isEmpty() && stripe.scheduled.compareAndSet(false, true));
+            drained = true;
+        } finally {
+            if (!drained) {
+                // a failed input ends this task, the rest of the stripe continues in a new one
+                stripe.scheduled.set(false);
+                if (!stripe.inputs.isEmpty() && stripe.scheduled.compareAndSet(false, true)) {
+                    super.post(input, taskQueue);
+                }
+            }
+        }
+    }
+
+    private Stripe<I> stripeOf(I input, PriorityTaskQueue taskQueue) {
+        Stripe<I>[] all = getState(taskQueue, this::newStripes);
+        K key = key(input);
+        int hash = key == null ? 0 : key.hashCode();
+        return all[(hash ^ (hash >>> 16)) & (all.length - 1)];
+    }
+
+    @SuppressWarnings("unchecked")
+    private Stripe<I>[] newStripes() {
+        Stripe<I>[] all = (Stripe<I>[]) new Stripe<?>[stripes];
+        for (int i = 0; i < all.length; i++) {
+            all[i] = new Stripe<>();
+        }
+        return all;
+    }
+
+    /**
+     * Inputs of one stripe during one execution, waiting to be processed
+     */
+    private static class Stripe<I> {
+        private final Queue<I> inputs = new ConcurrentLinkedQueue<>();
+        // set while a task for this stripe is in the mailbox or running
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+    }
+}
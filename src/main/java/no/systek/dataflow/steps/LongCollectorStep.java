@@ -0,0 +1,26 @@
+package no.systek.dataflow.steps;
+
+/**
+ * Like {@link CollectorStep}, but collects long values into a long[] instead of boxing each value in a list
+ */
+public class LongCollectorStep extends NumericCollectorStep<Long, long[]> {
+
+    public LongCollectorStep(String name, int bufferSize) {
+        super(name, bufferSize);
+    }
+
+    @Override
+    final long[] newArray(int length) {
+        return new long[length];
+    }
+
+    @Override
+    final int length(long[] values) {
+        return values.length;
+    }
+
+    @Override
+    final void set(long[] values, int index, Long value) {
+        values[index] = value;
+    }
+}
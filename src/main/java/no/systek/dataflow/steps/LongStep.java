@@ -0,0 +1,39 @@
+package no.systek.dataflow.steps;
+
+import java.util.function.Consumer;
+
+import no.systek.dataflow.PriorityTaskQueue;
+import no.systek.dataflow.Step;
+
+/**
+ * Step which maps long values to long values. A chain of fused long steps (see {@link Step#isFusable()}) hands the
+ * values from step to step without boxing them in between; values going through a mailbox are boxed, see
+ * {@link NumericStep}.
+ * <p>
+ * Like other fusable steps, long steps must not keep any state.
+ */
+public abstract class LongStep extends NumericStep<Long> {
+
+    protected LongStep(String name, int maxParallelExecution) {
+        super(name, maxParallelExecution);
+    }
+
+    protected abstract long apply(long value);
+
+    @Override
+    final Long applyBoxed(Long input) {
+        return apply(input);
+    }
+
+    @Override
+    final void runChain(Long input, Consumer<Long> onResult, PriorityTaskQueue taskQueue) {
+        long value = apply(input);
+        LongStep last = this;
+        Step<Long, ?> next;
+        while ((next = last.getFusedChild()) instanceof LongStep) {
+            last = (LongStep) next;
+            value = last.apply(value);
+        }
+        emit(last, value, onResult, taskQueue);
+    }
+}
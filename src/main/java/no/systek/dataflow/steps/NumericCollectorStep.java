@@ -0,0 +1,109 @@
+package no.systek.dataflow.steps;
+
+import java.io.Serializable;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import no.systek.dataflow.ExecutionStep;
+import no.systek.dataflow.PriorityTaskQueue;
+
+/**
+ * Shared part of {@link IntCollectorStep}, {@link LongCollectorStep} and {@link DoubleCollectorStep}: collects the
+ * values into a primitive array of type "A" instead of boxing each value in a list, and pushes them like
+ * {@link CollectorStep}
+ */
+abstract class NumericCollectorStep<T, A> extends ExecutionStep<T, A> {
+    // compared by identity, so it cannot be mistaken for a collected value
+    private static final Object CLEANUP = new Object();
+
+    private final int bufferSize;
+    private final Supplier<Buffer<A>> newBuffer = () -> new Buffer<>(newArray(16));
+
+    NumericCollectorStep(String name, int bufferSize) {
+        super(name, 1);
+        this.bufferSize = bufferSize;
+    }
+
+    abstract A newArray(int length);
+
+    abstract int length(A values);
+
+    abstract void set(A values, int index, T value);
+
+    @Override
+    protected void run(T input, Consumer<A> onResult, PriorityTaskQueue taskQueue) {
+        Buffer<A> buffer = getState(taskQueue, newBuffer);
+        if (input == CLEANUP) {
+            buffer.scheduledCleanup = false;
+            pushValues(buffer, onResult);
+        } else {
+            if (buffer.size >= bufferSize) {
+                pushValues(buffer, onResult);
+            }
+            if (buffer.size == length(buffer.values)) {
+                buffer.values = copyOf(buffer.values, buffer.size, buffer.size * 2);
+            }
+            set(buffer.values, buffer.size++, input);
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected void afterRun(PriorityTaskQueue taskQueue) {
+        // same as CollectorStep: push what has been collected once the graph has become idle
+        Buffer<A> buffer = getState(taskQueue, newBuffer);
+        if (buffer.size > 0 && !buffer.scheduledCleanup) {
+            buffer.scheduledCleanup = true;
+            // T is erased to Object, so the marker passes through the mailbox like a value
+            scheduleCleanup(taskQueue, (T) CLEANUP);
+        }
+    }
+
+    @Override
+    protected boolean supportsCheckpoints() {
+        return true;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected Serializable saveState(Object state) {
+        Buffer<A> buffer = (Buffer<A>) state;
+        // primitive arrays are serializable
+        return (Serializable) copyOf(buffer.values, buffer.size, buffer.size);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected Object restoreState(Serializable saved) {
+        A values = (A) saved;
+        int size = length(values);
+        Buffer<A> buffer = new Buffer<>(copyOf(values, size, Math.max(16, size)));
+        buffer.size = size;
+        return buffer;
+    }
+
+    private void pushValues(Buffer<A> buffer, Consumer<A> onResult) {
+        A values = copyOf(buffer.values, buffer.size, buffer.size);
+        buffer.size = 0;
+        onResult.accept(values);
+    }
+
+    private A copyOf(A values, int size, int length) {
+        A copy = newArray(length);
+        System.arraycopy(values, 0, copy, 0, size);
+        return copy;
+    }
+
+    /**
+     * Values collected during one execution; only accessed by one task at a time
+     */
+    private static class Buffer<A> {
+        private A values;
+        private int size;
+        private boolean scheduledCleanup;
+
+        Buffer(A values) {
+            this.values = values;
+        }
+    }
+}
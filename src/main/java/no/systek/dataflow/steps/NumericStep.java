@@ -0,0 +1,67 @@
+package no.systek.dataflow.steps;
+
+import java.util.function.Consumer;
+
+import no.systek.dataflow.ExecutionStep;
+import no.systek.dataflow.PriorityTaskQueue;
+import no.systek.dataflow.Step;
+import no.systek.dataflow.metrics.DataflowMetrics;
+
+/**
+ * Shared part of {@link IntStep}, {@link LongStep} and {@link DoubleStep}. A task of the first step of a fused chain
+ * (see {@link Step#isFusable()}) runs the whole chain of steps of the same type, which each subclass does with its
+ * primitive type, so the values are only boxed where they enter and leave the chain.
+ * <p>
+ * Mailboxes hold boxed values: a numeric step which is not fused with its parent, for example because it allows
+ * fewer parallel executions or has a bounded mailbox, gets its inputs boxed like any other step. While metrics are
+ * measured, each step runs on its own and the values are boxed between all steps.
+ * <p>
+ * Like other fusable steps, numeric steps must not keep any state.
+ */
+abstract class NumericStep<T extends Number> extends ExecutionStep<T, T> {
+
+    NumericStep(String name, int maxParallelExecution) {
+        super(name, maxParallelExecution);
+    }
+
+    /**
+     * Maps the input with this step only
+     */
+    abstract T applyBoxed(T input);
+
+    /**
+     * Maps the input with this step and all fused steps of the same type after it, and hands the result to
+     * {@link #emit}
+     */
+    abstract void runChain(T input, Consumer<T> onResult, PriorityTaskQueue taskQueue);
+
+    @Override
+    protected final void run(T input, Consumer<T> onResult, PriorityTaskQueue taskQueue) {
+        if (taskQueue.getMetrics() != DataflowMetrics.NONE) {
+            // each fused step has to be measured on its own
+            onResult.accept(applyBoxed(input));
+        } else {
+            runChain(input, onResult, taskQueue);
+        }
+    }
+
+    /**
+     * Hands the output of the given last step of a chain to its children
+     */
+    final void emit(NumericStep<T> last, T output, Consumer<T> onResult, PriorityTaskQueue taskQueue) {
+        if (last == this) {
+            onResult.accept(output);
+        } else {
+            last.onOutputAvailable(output, taskQueue);
+        }
+    }
+
+    @Override
+    protected final void afterRun(PriorityTaskQueue taskQueue) {
+    }
+
+    @Override
+    protected boolean isFusable() {
+        return true;
+    }
+}
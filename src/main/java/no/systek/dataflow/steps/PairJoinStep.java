@@ -1,9 +1,12 @@
 package no.systek.dataflow.steps;
 
-import java.util.LinkedList;
-import java.util.Queue;
+import java.io.File;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.function.Consumer;
 
+import no.systek.dataflow.ExecutionStep;
 import no.systek.dataflow.PriorityTaskQueue;
 import no.systek.dataflow.Step;
 
@@ -11,52 +14,117 @@ import no.systek.dataflow.Step;
  * Collects and sorts inputs into two internal queues and produces one joined output as soon as one of
  * each input type is available
  */
-public abstract class PairJoinStep<Ileft, Iright, O> extends Step<Object, O> {
+public abstract class PairJoinStep<Ileft, Iright, O> extends ExecutionStep<Object, O> {
 
     private final Object CLEANUP = new Object();
-    private final Queue<Ileft> left;
-    private final Queue<Iright> right;
-    private boolean cleanupScheduled;
+
+    private volatile int maxInMemory = Integer.MAX_VALUE;
+    private volatile File spillDirectory;
 
     protected PairJoinStep(String name) {
         super(name, 1);
-        this.left = new LinkedList<>();
-        this.right = new LinkedList<>();
+    }
+
+    /**
+     * Keeps at most "maxInMemory" inputs of each side on the heap while they wait for their counterpart, further
+     * inputs are serialized to a temporary file in the given directory (or the default temporary directory if null)
+     * and read back in order. The inputs must then be {@link java.io.Serializable}.
+     * <p>
+     * Must be configured before the graph is executed.
+     */
+    public void setSpilling(int maxInMemory, File spillDirectory) {
+        if (maxInMemory < 1) {
+            throw new IllegalArgumentException("Max items in memory must be at least 1");
+        }
+        this.maxInMemory = maxInMemory;
+        this.spillDirectory = spillDirectory;
     }
 
     protected abstract O join(Ileft left, Iright right);
 
     protected abstract boolean isLeft(Object input);
 
+    @Override
+    protected void run(Object input, Consumer<O> onResult, PriorityTaskQueue taskQueue) {
+        runWithTaskQueue(input, onResult, taskQueue);
+    }
+
     @Override
     protected void run(Object input, Consumer<O> onResult) {
+        Inputs<Ileft, Iright> inputs = getState(currentTaskQueue(), this::newInputs);
         if (CLEANUP.equals(input)) {
-            cleanupScheduled = false;
-            if (!left.isEmpty() || !right.isEmpty()) {
+            inputs.cleanupScheduled = false;
+            if (!inputs.left.isEmpty() || !inputs.right.isEmpty()) {
+                inputs.left.clear();
+                inputs.right.clear();
                 throw new RuntimeException("Joiner step has unsatisfied dependencies, something went wrong");
             }
             return;
         }
 
         if (isLeft(input)) {
-            left.add((Ileft) input);
+            inputs.left.add((Ileft) input);
         } else {
-            right.add((Iright) input);
+            inputs.right.add((Iright) input);
         }
 
-        if (!left.isEmpty() && !right.isEmpty()) {
-            onResult.accept(join(left.poll(), right.poll()));
+        if (!inputs.left.isEmpty() && !inputs.right.isEmpty()) {
+            onResult.accept(join(inputs.left.poll(), inputs.right.poll()));
         }
     }
 
     @Override
     protected void afterRun(PriorityTaskQueue taskQueue) {
-        if ((!left.isEmpty() || !right.isEmpty()) && !cleanupScheduled) {
-            cleanupScheduled = true;
-            taskQueue.addTask(getGraphDepth(), tq -> post(CLEANUP, tq));
+        Inputs<Ileft, Iright> inputs = getState(taskQueue, this::newInputs);
+        if ((!inputs.left.isEmpty() || !inputs.right.isEmpty()) && !inputs.cleanupScheduled) {
+            inputs.cleanupScheduled = true;
+            scheduleCleanup(taskQueue, CLEANUP);
         }
     }
 
+    @Override
+    protected void onExecutionFinished(PriorityTaskQueue taskQueue) {
+        // a failed or stopped execution may leave inputs behind, together with their spill files
+        Inputs<Ileft, Iright> inputs = getState(taskQueue, () -> null);
+        if (inputs != null) {
+            inputs.left.clear();
+            inputs.right.clear();
+        }
+    }
+
+    /**
+     * Only without spilling: the spilled items would have to be read back onto the heap for each checkpoint
+     */
+    @Override
+    protected boolean supportsCheckpoints() {
+        return maxInMemory == Integer.MAX_VALUE;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected Serializable saveState(Object state) {
+        Inputs<Ileft, Iright> inputs = (Inputs<Ileft, Iright>) state;
+        ArrayList<List<?>> saved = new ArrayList<>(2);
+        saved.add(inputs.left.copy());
+        saved.add(inputs.right.copy());
+        return saved;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected Object restoreState(Serializable saved) {
+        List<List<?>> sides = (List<List<?>>) saved;
+        Inputs<Ileft, Iright> inputs = newInputs();
+        sides.get(0).forEach(left -> inputs.left.add((Ileft) left));
+        sides.get(1).forEach(right -> inputs.right.add((Iright) right));
+        return inputs;
+    }
+
+    private Inputs<Ileft, Iright> newInputs() {
+        return new Inputs<>(new SpillingQueue<>(maxInMemory, spillDirectory),
+            new SpillingQueue<>(maxInMemory, spillDirectory));
+    }
+
     public void dependsOnLeft(DependencyCreator<Object, Ileft> left) {
         addParent((Step<?, Object>) left.step);
         left.link((Step<Ileft, ?>) this);
@@ -72,4 +140,18 @@ public abstract class PairJoinStep<Ileft, Iright, O> extends Step<Object, O> {
         throw new IllegalArgumentException(
             "Cannot use dependsOn() on PairJoinStep, use dependsOnLeft/dependsOnRight instead");
     }
-}
\ No newline at end of file
+
+    /**
+     * Inputs waiting for their counterpart during one execution; only accessed by one task at a time
+     */
+    private static class Inputs<Ileft, Iright> {
+        private final SpillingQueue<Ileft> left;
+        private final SpillingQueue<Iright> right;
+        private boolean cleanupScheduled;
+
+        Inputs(SpillingQueue<Ileft> left, SpillingQueue<Iright> right) {
+            this.left = left;
+            this.right = right;
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package no.systek.dataflow.steps;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of computed results for {@link CachingStep}. Once it holds more than "maxSize" results, the least
+ * recently used one which is not being computed anymore is evicted; with a time to live, results are also recomputed
+ * once they are older than that. One cache can be shared by several steps and is shared by all executions of a
+ * graph.
+ * <p>
+ * A result is only computed once at a time: lookups of a key which is being computed wait for that computation
+ * instead of starting another one, see {@link #getCoalesced()}. Failed computations are not cached. Results being
+ * computed are never evicted, so while many keys are computed at once the cache can hold more than "maxSize".
+ * <p>
+ * All lookups synchronize on the cache, which keeps the order of use for the eviction. The statistics help sizing
+ * the cache: a low hit ratio with many evictions means it is too small for the keys in use.
+ */
+@SuppressWarnings("WeakerAccess")
+public class ResultCache<K, V> {
+    private final int maxSize;
+    private final long ttlNanos;
+    private final Map<K, Entry<V>> entries;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Evicts the least recently used result once there are more than "maxSize"
+     */
+    public ResultCache(int maxSize) {
+        this(maxSize, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Evicts the least recently used result once there are more than "maxSize", and results which are older than
+     * the time to live
+     */
+    public ResultCache(int maxSize, long ttl, TimeUnit unit) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Max size must be at least 1");
+        }
+        if (ttl <= 0) {
+            throw new IllegalArgumentException("Time to live must be positive");
+        }
+        this.maxSize = maxSize;
+        this.ttlNanos = unit.toNanos(ttl);
+        this.entries = new LinkedHashMap<K, ResultCache.Entry<V>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, ResultCache.Entry<V>> eldest) {
+                if (size() > ResultCache.this.maxSize) {
+                    evictLeastRecentlyUsed(this);
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @return the number of lookups which found a computed result
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of lookups which had to compute the result
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the number of lookups which waited for the computation of another lookup of the same key
+     */
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    /**
+     * @return the number of results which were evicted because the cache was full or they were too old
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    @Override
+    public String toString() {
+        return "ResultCache{size=" + size() + ", hits=" + getHits() + ", misses=" + getMisses() + ", coalesced="
+                + getCoalesced() + ", evictions=" + getEvictions() + "}";
+    }
+
+    /**
+     * Evicts the least recently used result which is done; results which are still being computed stay, otherwise
+     * the next lookup would compute them again
+     */
+    private void evictLeastRecentlyUsed(Map<K, Entry<V>> map) {
+        Iterator<Entry<V>> iterator = map.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().done) {
+                iterator.remove();
+                evictions.increment();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Looks up the result of the given key
+     *
+     * @return the entry with the result if it has been computed, a new entry which the caller must compute and then
+     * {@link #complete} or {@link #fail}, or null if another caller is computing the result and the waiter has been
+     * added to its entry
+     */
+    synchronized Entry<V> acquire(K key, Waiter<V> waiter) {
+        Entry<V> entry = entries.get(key);
+        if (entry != null && entry.done && ttlNanos != Long.MAX_VALUE && System.nanoTime() - entry.expires >= 0) {
+            entries.remove(key);
+            evictions.increment();
+            entry = null;
+        }
+        if (entry == null) {
+            misses.increment();
+            entry = new Entry<>();
+            entries.put(key, entry);
+            return entry;
+        }
+        if (entry.done) {
+            hits.increment();
+            return entry;
+        }
+        coalesced.increment();
+        waiter.waiting();
+        if (entry.waiters == null) {
+            entry.waiters = new ArrayList<>(2);
+        }
+        entry.waiters.add(waiter);
+        return null;
+    }
+
+    /**
+     * Stores the computed result and hands it to the waiters
+     */
+    void complete(Entry<V> entry, V value) {
+        List<Waiter<V>> waiters;
+        synchronized (this) {
+            entry.value = value;
+            entry.expires = System.nanoTime() + ttlNanos;
+            entry.done = true;
+            waiters = entry.waiters;
+            entry.waiters = null;
+        }
+        if (waiters != null) {
+            for (int i = 0; i < waiters.size(); i++) {
+                waiters.get(i).done(value, false);
+            }
+        }
+    }
+
+    /**
+     * Removes the entry of a failed computation, such that the next lookup computes it again, and tells the waiters
+     */
+    void fail(K key, Entry<V> entry) {
+        List<Waiter<V>> waiters;
+        synchronized (this) {
+            if (entries.get(key) == entry) {
+                entries.remove(key);
+            }
+            waiters = entry.waiters;
+            entry.waiters = null;
+        }
+        if (waiters != null) {
+            for (int i = 0; i < waiters.size(); i++) {
+                waiters.get(i).done(null, true);
+            }
+        }
+    }
+
+    /**
+     * A result, or its computation which is still running. The fields are guarded by the cache.
+     */
+    static final class Entry<V> {
+        private V value;
+        private long expires;
+        private boolean done;
+        private List<Waiter<V>> waiters;
+
+        /**
+         * Only called for entries returned as computed by {@link #acquire}
+         */
+        V value() {
+            return value;
+        }
+
+        boolean isDone() {
+            return done;
+        }
+    }
+
+    /**
+     * A lookup waiting for the computation of another lookup of the same key
+     */
+    interface Waiter<V> {
+        /**
+         * Called while the cache is locked, right before the waiter is added to the entry
+         */
+        void waiting();
+
+        /**
+         * @param failed true if the computation failed, the waiter should then compute the result itself
+         */
+        void done(V value, boolean failed);
+    }
+}
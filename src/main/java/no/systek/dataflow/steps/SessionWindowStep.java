@@ -0,0 +1,44 @@
+package no.systek.dataflow.steps;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Collects inputs which arrive close to each other: the window is pushed once no input has arrived for "gap", or
+ * once the oldest input has waited for "maxLatency", whichever comes first.
+ */
+public class SessionWindowStep<T> extends WindowStep<T> {
+    private final long gapNanos;
+
+    public SessionWindowStep(String name, long gap, long maxLatency, TimeUnit unit) {
+        super(name, maxLatency, unit);
+        if (gap <= 0) {
+            throw new IllegalArgumentException("Gap must be positive");
+        }
+        this.gapNanos = unit.toNanos(gap);
+    }
+
+    @Override
+    void onInput(WindowBuffer<T> window, T input, long now, Consumer<List<T>> onResult) {
+        if (!window.isEmpty() && now - window.newestTime() >= gapNanos) {
+            // the tick for the previous session has not run yet
+            push(window, onResult);
+        }
+        window.add(input, now);
+    }
+
+    @Override
+    long deadline(WindowBuffer<T> window) {
+        long endOfSession = window.newestTime() + gapNanos;
+        long maxDeadline = window.oldestTime() + maxLatencyNanos;
+        return endOfSession - maxDeadline < 0 ? endOfSession : maxDeadline;
+    }
+
+    @Override
+    void push(WindowBuffer<T> window, Consumer<List<T>> onResult) {
+        List<T> items = window.push();
+        window.clear();
+        onResult.accept(items);
+    }
+}
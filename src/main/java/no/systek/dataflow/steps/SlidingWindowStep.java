@@ -0,0 +1,65 @@
+package no.systek.dataflow.steps;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Keeps the last "size" inputs, and pushes all of them each time "slide" new inputs have arrived, or once the oldest
+ * new input has waited for "maxLatency". Inputs are therefore part of several pushed lists, like a moving average
+ * over the last "size" inputs which is updated every "slide" inputs. The slide must not be larger than the size.
+ * <p>
+ * Optionally, inputs older than "maxAge" are removed from the window as well.
+ */
+public class SlidingWindowStep<T> extends WindowStep<T> {
+    private final int size;
+    private final int slide;
+    private final long maxAgeNanos;
+
+    public SlidingWindowStep(String name, int size, int slide, long maxLatency, TimeUnit unit) {
+        this(name, size, slide, Long.MAX_VALUE, maxLatency, unit);
+    }
+
+    public SlidingWindowStep(String name, int size, int slide, long maxAge, long maxLatency, TimeUnit unit) {
+        super(name, maxLatency, unit);
+        if (size < 1 || slide < 1) {
+            throw new IllegalArgumentException("Size and slide must be at least 1");
+        }
+        if (slide > size) {
+            // inputs would be dropped from the window before enough of them have arrived to push it
+            throw new IllegalArgumentException("Slide must not be larger than size");
+        }
+        this.size = size;
+        this.slide = slide;
+        this.maxAgeNanos = maxAge == Long.MAX_VALUE ? Long.MAX_VALUE : unit.toNanos(maxAge);
+    }
+
+    @Override
+    void onInput(WindowBuffer<T> window, T input, long now, Consumer<List<T>> onResult) {
+        window.add(input, now);
+        if (window.size() > size) {
+            window.removeFirst();
+        }
+        if (window.unpushed() >= slide) {
+            push(window, onResult);
+        }
+    }
+
+    @Override
+    long deadline(WindowBuffer<T> window) {
+        return window.unpushedSince() + maxLatencyNanos;
+    }
+
+    @Override
+    void push(WindowBuffer<T> window, Consumer<List<T>> onResult) {
+        if (maxAgeNanos != Long.MAX_VALUE) {
+            long now = System.nanoTime();
+            while (!window.isEmpty() && now - window.oldestTime() > maxAgeNanos) {
+                window.removeFirst();
+            }
+        }
+        if (!window.isEmpty()) {
+            onResult.accept(window.push());
+        }
+    }
+}
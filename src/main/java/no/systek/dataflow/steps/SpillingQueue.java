@@ -0,0 +1,138 @@
+package no.systek.dataflow.steps;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * FIFO queue which keeps at most "maxInMemory" items on the heap. Further items are serialized to a temporary file
+ * and read back in chunks once the items in memory have been taken. Spilled items must be {@link
+ * java.io.Serializable}.
+ * <p>
+ * The file is deleted as soon as all spilled items have been read back, or when the queue is cleared, which the steps
+ * using it also do once their execution has finished (see {@link no.systek.dataflow.Step#onExecutionFinished}), so
+ * failed or stopped executions do not leave files behind. Not thread safe, like the step state it is used for.
+ */
+class SpillingQueue<T> {
+    private final int maxInMemory;
+    private final File directory;
+    private final ArrayDeque<T> memory = new ArrayDeque<>();
+
+    private File file;
+    private ObjectOutputStream out;
+    private ObjectInputStream in;
+    private int spilled;
+
+    /**
+     * @param directory where to create the temporary file, or null for the default temporary directory
+     */
+    SpillingQueue(int maxInMemory, File directory) {
+        this.maxInMemory = maxInMemory;
+        this.directory = directory;
+    }
+
+    void add(T item) {
+        // once items are spilled, new items have to go after them
+        if (spilled == 0 && memory.size() < maxInMemory) {
+            memory.add(item);
+        } else {
+            spill(item);
+        }
+    }
+
+    T poll() {
+        if (memory.isEmpty() && spilled > 0) {
+            readBack();
+        }
+        return memory.poll();
+    }
+
+    boolean isEmpty() {
+        return memory.isEmpty() && spilled == 0;
+    }
+
+    int size() {
+        return memory.size() + spilled;
+    }
+
+    /**
+     * @return a copy of all items in order, for a checkpoint. Only supported while no items have been spilled: a
+     * queue which may spill holds more than should be copied to the heap.
+     */
+    ArrayList<T> copy() {
+        if (spilled > 0) {
+            throw new IllegalStateException("Cannot copy spilled items");
+        }
+        return new ArrayList<>(memory);
+    }
+
+    void clear() {
+        memory.clear();
+        spilled = 0;
+        closeFile();
+    }
+
+    private void spill(T item) {
+        try {
+            if (out == null) {
+                file = File.createTempFile("dataflow-", ".spill", directory);
+                out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            }
+            out.writeObject(item);
+            // do not keep references to the written objects
+            out.reset();
+            spilled++;
+        } catch (IOException e) {
+            closeFile();
+            throw new UncheckedIOException("Could not spill item to disk", e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void readBack() {
+        try {
+            out.flush();
+            if (in == null) {
+                in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+            }
+            for (int i = Math.min(spilled, maxInMemory); i > 0; i--) {
+                memory.add((T) in.readObject());
+                spilled--;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read spilled items", e);
+        } catch (ClassNotFoundException e) {
+            throw new RuntimeException("Could not read spilled items", e);
+        }
+        if (spilled == 0) {
+            closeFile();
+        }
+    }
+
+    private void closeFile() {
+        try {
+            if (in != null) {
+                in.close();
+            }
+            if (out != null) {
+                out.close();
+            }
+        } catch (IOException ignored) {
+        } finally {
+            in = null;
+            out = null;
+            if (file != null && !file.delete()) {
+                file.deleteOnExit();
+            }
+            file = null;
+        }
+    }
+}
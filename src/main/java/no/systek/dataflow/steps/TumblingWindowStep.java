@@ -0,0 +1,41 @@
+package no.systek.dataflow.steps;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Pushes the collected inputs as one list once "maxCount" inputs have arrived, or once the oldest of them has waited
+ * for "maxLatency", and then starts a new window. Each input is pushed exactly once.
+ */
+public class TumblingWindowStep<T> extends WindowStep<T> {
+    private final int maxCount;
+
+    public TumblingWindowStep(String name, int maxCount, long maxLatency, TimeUnit unit) {
+        super(name, maxLatency, unit);
+        if (maxCount < 1) {
+            throw new IllegalArgumentException("Max count must be at least 1");
+        }
+        this.maxCount = maxCount;
+    }
+
+    @Override
+    void onInput(WindowBuffer<T> window, T input, long now, Consumer<List<T>> onResult) {
+        window.add(input, now);
+        if (window.size() >= maxCount) {
+            push(window, onResult);
+        }
+    }
+
+    @Override
+    long deadline(WindowBuffer<T> window) {
+        return window.oldestTime() + maxLatencyNanos;
+    }
+
+    @Override
+    void push(WindowBuffer<T> window, Consumer<List<T>> onResult) {
+        List<T> items = window.push();
+        window.clear();
+        onResult.accept(items);
+    }
+}
@@ -0,0 +1,101 @@
+package no.systek.dataflow.steps;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Array backed ring buffer of the items of a window and the times they arrived at, plus the number of items which
+ * have not been pushed yet. Not thread safe, like the step state it is used for.
+ */
+class WindowBuffer<T> {
+    private Object[] items = new Object[16];
+    private long[] times = new long[16];
+    private int head;
+    private int size;
+    private int unpushed;
+    private long unpushedSince;
+
+    void add(T item, long now) {
+        if (size == items.length) {
+            grow();
+        }
+        int tail = (head + size) & (items.length - 1);
+        items[tail] = item;
+        times[tail] = now;
+        size++;
+        if (unpushed++ == 0) {
+            unpushedSince = now;
+        }
+    }
+
+    /**
+     * @return a copy of the items, oldest first, which are then no longer counted as unpushed
+     */
+    List<T> push() {
+        unpushed = 0;
+        return toList();
+    }
+
+    int unpushed() {
+        return unpushed;
+    }
+
+    /**
+     * @return when the oldest item which has not been pushed yet arrived
+     */
+    long unpushedSince() {
+        return unpushedSince;
+    }
+
+    void removeFirst() {
+        items[head] = null;
+        head = (head + 1) & (items.length - 1);
+        size--;
+        unpushed = Math.min(unpushed, size);
+    }
+
+    void clear() {
+        while (size > 0) {
+            removeFirst();
+        }
+        head = 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    long oldestTime() {
+        return times[head];
+    }
+
+    long newestTime() {
+        return times[(head + size - 1) & (items.length - 1)];
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<T> toList() {
+        Object[] copy = new Object[size];
+        int first = Math.min(size, items.length - head);
+        System.arraycopy(items, head, copy, 0, first);
+        System.arraycopy(items, 0, copy, first, size - first);
+        return (List<T>) Arrays.asList(copy);
+    }
+
+    private void grow() {
+        Object[] grownItems = new Object[items.length * 2];
+        long[] grownTimes = new long[times.length * 2];
+        int first = items.length - head;
+        System.arraycopy(items, head, grownItems, 0, first);
+        System.arraycopy(items, 0, grownItems, first, head);
+        System.arraycopy(times, head, grownTimes, 0, first);
+        System.arraycopy(times, 0, grownTimes, first, head);
+        items = grownItems;
+        times = grownTimes;
+        head = 0;
+    }
+}
@@ -0,0 +1,98 @@
+package no.systek.dataflow.steps;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import no.systek.dataflow.ExecutionStep;
+import no.systek.dataflow.PriorityTaskQueue;
+
+/**
+ * Base of the window steps, which collect inputs like {@link CollectorStep} but also push them on count and time
+ * triggers, so the latency stays bounded in a graph which never becomes idle.
+ * <p>
+ * Time triggers are checked by a tick task, which is added to the task queue at the highest priority once the next
+ * deadline has passed. Inputs which have not been pushed yet are pushed when the graph becomes idle as well.
+ * <p>
+ * Windows do not support checkpoints: once a window has state in an execution, no checkpoint of that execution is
+ * taken anymore. The tick task is not {@link PriorityTaskQueue.Recreatable} either, so it could not be restored
+ * from a checkpoint.
+ */
+public abstract class WindowStep<T> extends ExecutionStep<T, List<T>> {
+    private final Object TICK = new Object();
+    private final Object CLEANUP = new Object();
+
+    final long maxLatencyNanos;
+
+    WindowStep(String name, long maxLatency, TimeUnit unit) {
+        super(name, 1);
+        if (maxLatency <= 0) {
+            throw new IllegalArgumentException("Max latency must be positive");
+        }
+        this.maxLatencyNanos = unit.toNanos(maxLatency);
+    }
+
+    /**
+     * Adds the input to the window, pushing the window before or after if a count trigger fires
+     */
+    abstract void onInput(WindowBuffer<T> window, T input, long now, Consumer<List<T>> onResult);
+
+    /**
+     * @return the time (as of {@link System#nanoTime()}) at which the window has to be pushed, only called if there
+     * are inputs which have not been pushed yet
+     */
+    abstract long deadline(WindowBuffer<T> window);
+
+    /**
+     * Pushes the window because its deadline has passed or the graph has become idle
+     */
+    abstract void push(WindowBuffer<T> window, Consumer<List<T>> onResult);
+
+    @Override
+    protected void run(T input, Consumer<List<T>> onResult, PriorityTaskQueue taskQueue) {
+        Window<T> window = getState(taskQueue, Window::new);
+        if (input == CLEANUP) {
+            window.cleanupScheduled = false;
+            if (window.buffer.unpushed() > 0) {
+                push(window.buffer, onResult);
+            }
+        } else if (input == TICK) {
+            window.tickScheduled = false;
+            if (window.buffer.unpushed() > 0 && System.nanoTime() - deadline(window.buffer) >= 0) {
+                push(window.buffer, onResult);
+            }
+        } else {
+            onInput(window.buffer, input, System.nanoTime(), onResult);
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected void afterRun(PriorityTaskQueue taskQueue) {
+        Window<T> window = getState(taskQueue, Window::new);
+        if (window.buffer.unpushed() == 0) {
+            return;
+        }
+        if (!window.cleanupScheduled) {
+            window.cleanupScheduled = true;
+            scheduleCleanup(taskQueue, (T) CLEANUP);
+        }
+        if (!window.tickScheduled) {
+            // deadlines only move forward, so a pending tick is never too late; if it is early, the next one is
+            // scheduled after it has run
+            window.tickScheduled = true;
+            long delay = Math.max(0, deadline(window.buffer) - System.nanoTime());
+            taskQueue.addTaskDelayed(PriorityTaskQueue.HIGHEST_PRIORITY, delay, TimeUnit.NANOSECONDS,
+                pq -> post((T) TICK, pq));
+        }
+    }
+
+    /**
+     * The window of one execution; only accessed by one task at a time
+     */
+    private static class Window<T> {
+        private final WindowBuffer<T> buffer = new WindowBuffer<>();
+        private boolean cleanupScheduled;
+        private boolean tickScheduled;
+    }
+}
@@ -9,7 +9,7 @@ import java.util.concurrent.TimeUnit;
 
 public abstract class AbstractStepTest {
 
-    private ExecutorService executorService;
+    protected ExecutorService executorService;
     protected StepExecutor stepExecutor;
 
     @Before
@@ -26,4 +26,12 @@ public abstract class AbstractStepTest {
         stepExecutor = null;
     }
 
+    protected static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
 }
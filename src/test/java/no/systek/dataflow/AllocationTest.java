@@ -0,0 +1,180 @@
+package no.systek.dataflow;
+
+import com.sun.management.ThreadMXBean;
+import no.systek.dataflow.steps.IntStep;
+import no.systek.dataflow.steps.ListStep;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class AllocationTest {
+
+    @Test
+    public void steadyStateMessagePassingDoesNotAllocate() {
+        // the list step posts the inputs from a task, and the single step after the parallel step keeps them from
+        // being fused, so all inputs go through mailboxes
+        ListStep<Integer, Integer> split = Steps.newParallelListStep(in -> in);
+        Step<Integer, Integer> parallel = Steps.newParallel(in -> in);
+        Step<Integer, Integer> single = Steps.newSingle(in -> in);
+        parallel.dependsOn(split.output());
+        single.dependsOn(parallel.output());
+
+        assertNoAllocations(single);
+    }
+
+    @Test
+    public void fusedIntStepsDoNotBox() {
+        // the values in between are outside of the cache of Integer.valueOf, so boxing them would allocate
+        IntStep plus = Steps.newIntParallel(i -> i + 1000);
+        IntStep times = Steps.newIntParallel(i -> i * 3);
+        IntStep back = Steps.newIntParallel(i -> i / 3 - 1000);
+        plus.dependsOn(Steps.<Integer, Integer>newParallelListStep(in -> in).output());
+        times.dependsOn(plus.output());
+        back.dependsOn(times.output());
+
+        assertNoAllocations(back);
+    }
+
+    /**
+     * Feeds bursts of 42 to the graph of the given tail, which must produce one output per input
+     */
+    private static void assertNoAllocations(Step<?, Integer> tail) {
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof ThreadMXBean);
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        // the probes of coverage agents keep the JIT from removing allocations of the instrumented code
+        Assume.assumeFalse(ManagementFactory.getRuntimeMXBean().getInputArguments().stream()
+                .anyMatch(argument -> argument.startsWith("-javaagent")));
+
+        // the threads of the usual executors allocate a bit each time they go idle and wake up again, so use one which
+        // does not to measure the dataflow alone
+        ParkingExecutor pool = new ParkingExecutor(4);
+        StepExecutor executor = new StepExecutor(pool, s -> {
+        }, () -> null, 4, 20, TimeUnit.SECONDS);
+
+        AtomicInteger results = new AtomicInteger();
+        Pipeline<Integer> pipeline = executor.startPipeline(tail, in -> results.incrementAndGet());
+        List<Thread> measured = new ArrayList<>(pool.threads);
+        // the feeding thread posts to the first step, so it is measured as well
+        measured.add(Thread.currentThread());
+
+        int bursts = 1_000;
+        // warm up
+        for (int i = 0; i < 3; i++) {
+            feedInBursts(pipeline, bursts, 32, results);
+        }
+
+        long allocated = allocatedBytes(threads, measured, () -> feedInBursts(pipeline, bursts, 32, results));
+
+        assertThat(pipeline.close(5, TimeUnit.SECONDS), is(true));
+        pool.shutdown();
+        // less than a byte per message, which leaves some room for the JVM itself
+        Assert.assertTrue("Allocated " + allocated + " bytes for " + bursts * 32 + " messages",
+                allocated < bursts * 32);
+    }
+
+    private static long allocatedBytes(ThreadMXBean bean, List<Thread> threads, Runnable work) {
+        long[] ids = threads.stream().mapToLong(Thread::getId).toArray();
+        long before = Arrays.stream(bean.getThreadAllocatedBytes(ids)).sum();
+        work.run();
+        return Arrays.stream(bean.getThreadAllocatedBytes(ids)).sum() - before;
+    }
+
+    private static void feedInBursts(Pipeline<Integer> pipeline, int bursts, int burstSize, AtomicInteger results) {
+        List<Integer> burst = new ArrayList<>(Collections.nCopies(burstSize, 42));
+        int expected = results.get();
+        for (int i = 0; i < bursts; i++) {
+            pipeline.feed(burst);
+            expected += burstSize;
+            while (results.get() < expected) {
+                Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * Runs tasks on a fixed set of threads which poll a ring buffer, and park for a moment when there is nothing
+     * to do
+     */
+    private static class ParkingExecutor extends AbstractExecutorService {
+        private final Queue<Runnable> tasks = new RingQueue<>(1024);
+        private final List<Thread> threads = new ArrayList<>();
+        private volatile boolean shutdown;
+
+        ParkingExecutor(int size) {
+            for (int i = 0; i < size; i++) {
+                Thread thread = new Thread(this::work);
+                thread.setDaemon(true);
+                threads.add(thread);
+                thread.start();
+            }
+        }
+
+        private void work() {
+            while (!shutdown) {
+                Runnable task = tasks.poll();
+                if (task != null) {
+                    task.run();
+                } else {
+                    LockSupport.parkNanos(100_000);
+                }
+            }
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            if (shutdown) {
+                throw new RejectedExecutionException("Executor has been shut down");
+            }
+            tasks.offer(task);
+            for (int i = 0; i < threads.size(); i++) {
+                LockSupport.unpark(threads.get(i));
+            }
+        }
+
+        @Override
+        public void shutdown() {
+            shutdown = true;
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            shutdown = true;
+            return Collections.emptyList();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return shutdown;
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return shutdown && threads.stream().noneMatch(Thread::isAlive);
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            for (Thread thread : threads) {
+                thread.join(unit.toMillis(timeout));
+            }
+            return isTerminated();
+        }
+    }
+
+}
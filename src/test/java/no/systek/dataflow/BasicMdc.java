@@ -0,0 +1,36 @@
+package no.systek.dataflow;
+
+import org.slf4j.MDC;
+import org.slf4j.helpers.BasicMDCAdapter;
+import org.slf4j.spi.MDCAdapter;
+
+import java.lang.reflect.Field;
+
+/**
+ * The tests run without an slf4j binding, which makes the MDC a no-op. This swaps in the adapter of slf4j-api which
+ * really keeps the MDC, for the tests of the context propagation.
+ */
+class BasicMdc implements AutoCloseable {
+    private final MDCAdapter previous;
+
+    BasicMdc() throws ReflectiveOperationException {
+        this(new BasicMDCAdapter());
+    }
+
+    BasicMdc(BasicMDCAdapter adapter) throws ReflectiveOperationException {
+        previous = swap(adapter);
+    }
+
+    @Override
+    public void close() throws ReflectiveOperationException {
+        swap(previous);
+    }
+
+    private static MDCAdapter swap(MDCAdapter adapter) throws ReflectiveOperationException {
+        Field field = MDC.class.getDeclaredField("mdcAdapter");
+        field.setAccessible(true);
+        MDCAdapter current = (MDCAdapter) field.get(null);
+        field.set(null, adapter);
+        return current;
+    }
+}
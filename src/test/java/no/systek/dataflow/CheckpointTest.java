@@ -0,0 +1,57 @@
+package no.systek.dataflow;
+
+import no.systek.dataflow.steps.CollectorStep;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class CheckpointTest extends AbstractStepTest {
+
+    @Test
+    public void executionResumesFromCheckpoint() throws Exception {
+        AtomicInteger runs = new AtomicInteger();
+        AtomicInteger failures = new AtomicInteger();
+        Step<Integer, Integer> slow = Steps.newSingle(i -> {
+            runs.incrementAndGet();
+            if (i == 150 && failures.getAndIncrement() == 0) {
+                throw new IllegalStateException("Fails once");
+            }
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(2));
+            return i * 2;
+        });
+        slow.dependsOn(Steps.<Integer, Integer>newParallelListStep(in -> in).output());
+        CollectorStep<Integer> collector = Steps.newCollector(Integer.MAX_VALUE);
+        collector.dependsOn(slow.output());
+
+        File checkpoint = new File(Files.createTempDirectory("checkpoint").toFile(), "execution");
+        List<Integer> input = IntStream.range(0, 200).boxed().collect(Collectors.toList());
+        try {
+            stepExecutor.executeList(collector, input, checkpoint, 10, TimeUnit.MILLISECONDS);
+            Assert.fail("Should have failed");
+        } catch (RuntimeException expected) {
+            // the step failed
+        }
+        assertThat(checkpoint.exists(), is(true));
+
+        runs.set(0);
+        List<List<Integer>> result = stepExecutor.executeList(collector, input, checkpoint, 10, TimeUnit.MILLISECONDS);
+        assertThat(result, is(Collections.singletonList(
+                IntStream.range(0, 200).map(i -> i * 2).boxed().collect(Collectors.toList()))));
+        // only the inputs after the last checkpoint have been processed again
+        assertThat(runs.get() < 200, is(true));
+        assertThat(checkpoint.exists(), is(false));
+    }
+
+}
@@ -0,0 +1,208 @@
+package no.systek.dataflow;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import no.systek.dataflow.metrics.DataflowMetrics;
+import no.systek.dataflow.metrics.JmxMetrics;
+import no.systek.dataflow.metrics.MicrometerMetrics;
+import no.systek.dataflow.metrics.StatisticsMetrics;
+import no.systek.dataflow.metrics.StepStatistics;
+import no.systek.dataflow.metrics.Tracer;
+import no.systek.dataflow.steps.PairJoinStep;
+import no.systek.dataflow.steps.SourceStep;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MetricsTest {
+
+    private ExecutorService executorService;
+    private Step<Integer, Integer> tail;
+    private Step<List<Integer>, Integer> splitter;
+    private List<Integer> input;
+
+    @Before
+    public void setup() {
+        executorService = Executors.newFixedThreadPool(5);
+        splitter = Steps.newParallelListStep(in -> in);
+        tail = Steps.newSingle(in -> in + 1);
+        tail.dependsOn(splitter.output());
+        input = IntStream.range(0, 50).boxed().collect(Collectors.toList());
+    }
+
+    @After
+    public void cleanup() {
+        executorService.shutdown();
+    }
+
+    @Test
+    public void statisticsAreCollectedPerStep() {
+        StatisticsMetrics metrics = new StatisticsMetrics();
+        assertThat(newExecutor(metrics).executeList(tail, input).size(), is(50));
+
+        StepStatistics statistics = metrics.getStatistics(tail);
+        assertThat(statistics.getStepName(), is("SingleStep"));
+        assertThat(statistics.getRuns(), is(50L));
+        assertThat(statistics.getOutputs(), is(50L));
+        assertThat(statistics.getMaxParallelExecution(), is(1));
+        assertThat(metrics.getStatistics(splitter).getOutputs(), is(50L));
+        assertThat(metrics.getQueueWait(PriorityTaskQueue.HIGHEST_PRIORITY).getCount() > 0, is(true));
+    }
+
+    @Test
+    public void statisticsAreExposedWithJmx() throws Exception {
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        newExecutor(new JmxMetrics(mBeanServer, "jmxTest")).executeList(tail, input);
+
+        ObjectName query = new ObjectName("no.systek.dataflow:type=Step,graph=\"jmxTest\",*");
+        assertThat(mBeanServer.queryNames(query, null).size(), is(2));
+        for (ObjectName name : mBeanServer.queryNames(query, null)) {
+            assertThat(mBeanServer.getAttribute(name, "Outputs"), is(50L));
+            mBeanServer.unregisterMBean(name);
+        }
+    }
+
+    @Test
+    public void metricsAreReportedToMicrometer() {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        newExecutor(new MicrometerMetrics(registry, "micrometerTest")).executeList(tail, input);
+
+        assertThat(registry.get("dataflow.step.run").tag("step", "SingleStep").timer().count(), is(50L));
+        assertThat(registry.get("dataflow.step.outputs").tag("step", "SingleStep").counter().count(), is(50.0));
+    }
+
+    @Test
+    public void stepsWithTheSameNameGetTheirOwnMicrometerMeters() {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        Step<Integer, Integer> second = Steps.newSingle(in -> in);
+        second.dependsOn(tail.output());
+        newExecutor(new MicrometerMetrics(registry, "micrometerTest")).executeList(second, input);
+
+        Collection<Timer> timers = registry.find("dataflow.step.run").tag("step", "SingleStep").timers();
+        assertThat(timers.size(), is(2));
+        for (Timer timer : timers) {
+            assertThat(timer.count(), is(50L));
+        }
+    }
+
+    @Test
+    public void micrometerGaugesShowCurrentCounts() throws Exception {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch proceed = new CountDownLatch(1);
+        Step<Integer, Integer> blocking = Steps.newSingle(in -> {
+            blocked.countDown();
+            try {
+                proceed.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            return in;
+        });
+        blocking.dependsOn(Steps.<Integer, Integer>newParallelListStep(in -> in).output());
+
+        CompletableFuture<List<Integer>> result =
+            newExecutor(new MicrometerMetrics(registry, "micrometerTest")).executeListAsync(blocking, input);
+        assertThat(blocked.await(10, TimeUnit.SECONDS), is(true));
+        Gauge mailbox = registry.get("dataflow.step.mailbox").tag("step", "SingleStep").gauge();
+        Gauge scheduled = registry.get("dataflow.step.scheduled").tag("step", "SingleStep").gauge();
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (mailbox.value() < 49 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertThat(mailbox.value(), is(49.0));
+        assertThat(scheduled.value(), is(1.0));
+
+        proceed.countDown();
+        assertThat(result.get(10, TimeUnit.SECONDS).size(), is(50));
+        assertThat(mailbox.value(), is(0.0));
+        assertThat(scheduled.value(), is(0.0));
+    }
+
+    @Test
+    public void tracerFindsCriticalPath() {
+        Tracer tracer = new Tracer();
+        PairJoinStep<String, String, String> join = Steps.newJoiner("slow"::equals, (left, right) -> left + right);
+        join.dependsOnLeft(source("slow", 200).output());
+        join.dependsOnRight(source("fast", 0).output());
+
+        assertThat(newExecutor(tracer).execute(join), is("slowfast"));
+
+        List<String> path = tracer.getCriticalPath().stream().map(run -> run.name).collect(Collectors.toList());
+        assertThat(path.contains("slow"), is(true));
+        assertThat(path.contains("fast"), is(false));
+
+        StringWriter json = new StringWriter();
+        tracer.writeChromeTrace(json);
+        assertThat(json.toString().startsWith("{\"traceEvents\":["), is(true));
+        assertThat(json.toString().contains("\"name\":\"slow\""), is(true));
+    }
+
+    @Test
+    public void tracerRecordsFailedRuns() throws Exception {
+        Tracer tracer = new Tracer();
+        AtomicInteger runs = new AtomicInteger();
+        Step<Integer, Integer> failing = Steps.newParallel(in -> {
+            runs.incrementAndGet();
+            if (in % 10 == 0) {
+                throw new IllegalStateException("failed " + in);
+            }
+            return in;
+        });
+        failing.dependsOn(splitter.output());
+
+        try {
+            newExecutor(tracer).executeList(failing, input);
+            Assert.fail("Should have failed");
+        } catch (RuntimeException expected) {
+            // the step failed
+        }
+        executorService.shutdown();
+        assertThat(executorService.awaitTermination(10, TimeUnit.SECONDS), is(true));
+
+        long recorded = tracer.getEvents().stream()
+            .filter(event -> event instanceof Tracer.RunEvent && event.name.equals(failing.getName()))
+            .count();
+        assertThat(recorded, is((long) runs.get()));
+    }
+
+    private static SourceStep<String> source(String name, long sleepMs) {
+        return new SourceStep<String>(name, 1) {
+            @Override
+            protected String get() {
+                try {
+                    Thread.sleep(sleepMs);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                return name;
+            }
+        };
+    }
+
+    private StepExecutor newExecutor(DataflowMetrics metrics) {
+        return new StepExecutor(executorService, s -> {
+        }, () -> null, 5, 20, TimeUnit.SECONDS, metrics);
+    }
+}
@@ -0,0 +1,67 @@
+package no.systek.dataflow;
+
+import no.systek.dataflow.steps.DoubleCollectorStep;
+import no.systek.dataflow.steps.DoubleStep;
+import no.systek.dataflow.steps.IntCollectorStep;
+import no.systek.dataflow.steps.IntStep;
+import no.systek.dataflow.steps.LongCollectorStep;
+import no.systek.dataflow.steps.LongStep;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class NumericStepTest extends AbstractStepTest {
+
+    @Test
+    public void primitiveStepsTest() {
+        // twice is fused with plusOne, so it runs right after it on the same thread, with its output
+        ThreadLocal<Integer> lastPlusOne = new ThreadLocal<>();
+        AtomicInteger notFused = new AtomicInteger();
+        IntStep plusOne = Steps.newIntParallel(i -> {
+            lastPlusOne.set(i + 1);
+            return i + 1;
+        });
+        IntStep twice = Steps.newIntParallel(i -> {
+            if (lastPlusOne.get() == null || lastPlusOne.get() != i) {
+                notFused.incrementAndGet();
+            }
+            return i * 2;
+        });
+        IntCollectorStep ints = Steps.newIntCollector(Integer.MAX_VALUE);
+        ints.dependsOn(twice.output());
+        twice.dependsOn(plusOne.output());
+        plusOne.dependsOn(Steps.<Integer, Integer>newParallelListStep(in -> in).output());
+        ints.compile();
+        assertThat(plusOne.getFusedChild() == twice, is(true));
+
+        int[] collected = stepExecutor.execute(ints, IntStream.range(0, 100).boxed().collect(Collectors.toList()));
+        Arrays.sort(collected);
+        assertThat(collected, is(IntStream.range(0, 100).map(i -> (i + 1) * 2).toArray()));
+        assertThat(notFused.get(), is(0));
+
+        // single steps keep the order, and values beyond the int range stay intact
+        LongStep square = Steps.newLongSingle(l -> l * l);
+        LongCollectorStep longs = Steps.newLongCollector(Integer.MAX_VALUE);
+        longs.dependsOn(square.output());
+        square.dependsOn(Steps.<Long, Long>newParallelListStep(in -> in).output());
+        assertThat(stepExecutor.execute(longs, Arrays.asList(3L, 1L, 3_000_000_000L)),
+            is(new long[]{9L, 1L, 9_000_000_000_000_000_000L}));
+
+        DoubleStep half = Steps.newDoubleSingle(d -> d / 2);
+        DoubleCollectorStep doubles = Steps.newDoubleCollector(2);
+        doubles.dependsOn(half.output());
+        half.dependsOn(Steps.<Double, Double>newParallelListStep(in -> in).output());
+        List<double[]> pushed = stepExecutor.executeList(doubles, Arrays.asList(1.0, 2.0, 3.0));
+        assertThat(pushed.size(), is(2));
+        assertThat(pushed.get(0), is(new double[]{0.5, 1.0}));
+        assertThat(pushed.get(1), is(new double[]{1.5}));
+    }
+
+}
@@ -1,13 +1,18 @@
 package no.systek.dataflow;
 
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
 import static org.junit.Assert.assertThat;
 
 import java.util.LinkedList;
+import java.util.Map;
 import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -15,6 +20,8 @@ import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 
 import org.junit.Test;
+import org.slf4j.MDC;
+import org.slf4j.helpers.BasicMDCAdapter;
 
 public class PriorityTaskQueueTest {
 
@@ -117,6 +124,162 @@ public class PriorityTaskQueueTest {
         executorService.shutdown();
     }
 
+    @Test
+    public void testMaxParallelTasksUnderContention() {
+        final int parallelTasks = 4;
+        final int producers = 50;
+        final int tasksPerProducer = 200;
+        PriorityTaskQueue pq = new PriorityTaskQueue(parallelTasks, () -> null, s -> {
+        });
+
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger errors = new AtomicInteger();
+        AtomicInteger doneCounter = new AtomicInteger();
+        Consumer<PriorityTaskQueue> task = q -> {
+            if (running.incrementAndGet() > parallelTasks) {
+                errors.incrementAndGet();
+            }
+            doneCounter.incrementAndGet();
+            running.decrementAndGet();
+        };
+
+        for (int i = 0; i < producers; i++) {
+            pq.addTask(1, q -> {
+                for (int j = 0; j < tasksPerProducer; j++) {
+                    q.addTask(1, task);
+                }
+            });
+        }
+
+        ExecutorService executorService = Executors.newFixedThreadPool(8);
+        Queue<Exception> exceptions = new LinkedList<>();
+        assertThat(
+            pq.executeTasksAndAwaitDone(executorService, exceptions::offer, 10, TimeUnit.SECONDS),
+            is(true));
+        assertThat(exceptions.size(), is(0));
+        assertThat(errors.get(), is(0));
+        assertThat(doneCounter.get(), is(producers * tasksPerProducer));
+        executorService.shutdown();
+    }
+
+    @Test
+    public void testWorkStealingWithForkJoinPool() {
+        final int producers = 20;
+        final int tasksPerProducer = 100;
+        PriorityTaskQueue pq = new PriorityTaskQueue(2, () -> null, s -> {
+        });
+
+        AtomicInteger doneCounter = new AtomicInteger();
+        AtomicInteger errors = new AtomicInteger();
+        for (int i = 0; i < producers; i++) {
+            pq.addTask(1, q -> {
+                for (int j = 0; j < tasksPerProducer; j++) {
+                    q.addTask(1, q2 -> doneCounter.incrementAndGet());
+                }
+            });
+        }
+        pq.addTask(2, q -> {
+            if (doneCounter.get() != producers * tasksPerProducer) {
+                errors.incrementAndGet();
+            }
+        });
+
+        ForkJoinPool forkJoinPool = new ForkJoinPool(4);
+        Queue<Exception> exceptions = new LinkedList<>();
+        assertThat(
+            pq.executeTasksAndAwaitDone(forkJoinPool, exceptions::offer, 10, TimeUnit.SECONDS),
+            is(true));
+        assertThat(exceptions.size(), is(0));
+        assertThat(errors.get(), is(0));
+        assertThat(doneCounter.get(), is(producers * tasksPerProducer));
+        forkJoinPool.shutdown();
+    }
+
+    @Test
+    public void testForkedTasksAreNotLimitedByMaxParallelTasks() {
+        final int forked = 3;
+        PriorityTaskQueue pq = new PriorityTaskQueue(1, () -> null, s -> {
+        });
+
+        // with at most one task at a time from the queues, the forked tasks can only meet at the latch if they
+        // have been forked onto the pool
+        CountDownLatch allRunning = new CountDownLatch(forked);
+        AtomicInteger met = new AtomicInteger();
+        pq.addTask(1, q -> {
+            for (int i = 0; i < forked; i++) {
+                q.addTask(1, q2 -> {
+                    allRunning.countDown();
+                    try {
+                        if (allRunning.await(5, TimeUnit.SECONDS)) {
+                            met.incrementAndGet();
+                        }
+                    } catch (InterruptedException ignored) {
+                    }
+                });
+            }
+        });
+
+        ForkJoinPool forkJoinPool = new ForkJoinPool(forked + 1);
+        Queue<Exception> exceptions = new LinkedList<>();
+        assertThat(
+            pq.executeTasksAndAwaitDone(forkJoinPool, exceptions::offer, 20, TimeUnit.SECONDS),
+            is(true));
+        assertThat(exceptions.size(), is(0));
+        assertThat(met.get(), is(forked));
+        forkJoinPool.shutdown();
+    }
+
+    @Test
+    public void quietActionRunsWhileForkedTasksKeepComing() throws Exception {
+        PriorityTaskQueue pq = new PriorityTaskQueue(2, () -> null, s -> {
+        });
+        AtomicBoolean stop = new AtomicBoolean();
+        AtomicInteger runs = new AtomicInteger();
+        // each task adds the next one, so there are always forked tasks running or waiting
+        Consumer<PriorityTaskQueue> chain = new Consumer<PriorityTaskQueue>() {
+            @Override
+            public void accept(PriorityTaskQueue q) {
+                runs.incrementAndGet();
+                if (!stop.get()) {
+                    q.addTask(1, this);
+                }
+            }
+        };
+        pq.addTask(1, chain);
+        pq.addTask(1, chain);
+
+        ForkJoinPool forkJoinPool = new ForkJoinPool(4);
+        Queue<Exception> exceptions = new ConcurrentLinkedQueue<>();
+        CompletableFuture<Boolean> done = pq.start(forkJoinPool, exceptions::offer);
+        try {
+            awaitAtLeast(runs, 1000);
+
+            CountDownLatch quiet = new CountDownLatch(1);
+            AtomicInteger runsWhenQuiet = new AtomicInteger();
+            pq.runWhenQuiet(() -> {
+                runsWhenQuiet.set(runs.get());
+                quiet.countDown();
+            });
+            assertThat(quiet.await(5, TimeUnit.SECONDS), is(true));
+
+            // the tasks continue after the action
+            awaitAtLeast(runs, runsWhenQuiet.get() + 1000);
+        } finally {
+            stop.set(true);
+        }
+        assertThat(done.get(5, TimeUnit.SECONDS), is(true));
+        assertThat(exceptions.size(), is(0));
+        forkJoinPool.shutdown();
+    }
+
+    private static void awaitAtLeast(AtomicInteger counter, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (counter.get() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertThat(counter.get() >= count, is(true));
+    }
+
     @Test
     public void korrelasjonsIdIsPreserved() {
         final int parallelTasks = 10;
@@ -163,4 +326,125 @@ public class PriorityTaskQueueTest {
 
     }
 
-}
\ No newline at end of file
+
+    @Test
+    public void testCorrelationIdIsPropagatedAndRestored() throws Exception {
+        ThreadLocal<String> correlationId = new ThreadLocal<>();
+        ExecutorService executorService = Executors.newFixedThreadPool(2);
+        executorService.submit(() -> correlationId.set("worker"));
+        executorService.submit(() -> correlationId.set("worker"));
+
+        correlationId.set("caller");
+        PriorityTaskQueue pq = new PriorityTaskQueue(2, correlationId::get, correlationId::set);
+        Queue<String> seen = new ConcurrentLinkedQueue<>();
+        for (int i = 0; i < 10; i++) {
+            pq.addTask(1, q -> seen.add(correlationId.get()));
+        }
+        assertThat(pq.executeTasksAndAwaitDone(executorService, e -> {
+        }, 1, TimeUnit.SECONDS), is(true));
+        correlationId.remove();
+
+        assertThat(seen.size(), is(10));
+        assertThat(seen.stream().allMatch("caller"::equals), is(true));
+        for (int i = 0; i < 2; i++) {
+            assertThat(executorService.submit(correlationId::get).get(), is("worker"));
+        }
+        executorService.shutdown();
+    }
+
+    @Test
+    public void contextChangesOfATaskAreUndone() throws Exception {
+        ThreadLocal<String> correlationId = new ThreadLocal<>();
+        ExecutorService executorService = Executors.newSingleThreadExecutor();
+        executorService.submit(() -> correlationId.set("worker")).get();
+
+        correlationId.set("caller");
+        PriorityTaskQueue pq = new PriorityTaskQueue(1, correlationId::get, correlationId::set);
+        Queue<String> seen = new ConcurrentLinkedQueue<>();
+        for (int i = 0; i < 10; i++) {
+            pq.addTask(1, q -> {
+                seen.add(correlationId.get());
+                correlationId.set("changed");
+            });
+        }
+        assertThat(pq.executeTasksAndAwaitDone(executorService, e -> {
+        }, 1, TimeUnit.SECONDS), is(true));
+        correlationId.remove();
+
+        assertThat(seen.size(), is(10));
+        assertThat(seen.stream().allMatch("caller"::equals), is(true));
+        assertThat(executorService.submit(correlationId::get).get(), is("worker"));
+        executorService.shutdown();
+    }
+
+    @Test
+    public void mdcChangesOfATaskAreUndone() throws Exception {
+        ExecutorService executorService = Executors.newSingleThreadExecutor();
+        try (BasicMdc ignored = new BasicMdc()) {
+            executorService.submit(() -> MDC.put("request", "worker")).get();
+
+            MDC.put("request", "caller");
+            PriorityTaskQueue pq = new PriorityTaskQueue(1, () -> null, s -> {
+            });
+            Queue<String> seen = new ConcurrentLinkedQueue<>();
+            for (int i = 0; i < 10; i++) {
+                pq.addTask(1, q -> {
+                    seen.add(MDC.get("request"));
+                    MDC.put("request", "changed");
+                });
+            }
+            assertThat(pq.executeTasksAndAwaitDone(executorService, e -> {
+            }, 1, TimeUnit.SECONDS), is(true));
+
+            assertThat(seen.size(), is(10));
+            assertThat(seen.stream().allMatch("caller"::equals), is(true));
+            assertThat(executorService.submit(() -> MDC.get("request")).get(), is("worker"));
+        } finally {
+            MDC.remove("request");
+            executorService.shutdown();
+        }
+    }
+
+    @Test
+    public void mdcIsNotCopiedPerTask() throws Exception {
+        final int tasks = 1_000;
+        AtomicInteger copies = new AtomicInteger();
+        BasicMDCAdapter counting = new BasicMDCAdapter() {
+            @Override
+            public Map<String, String> getCopyOfContextMap() {
+                copies.incrementAndGet();
+                return super.getCopyOfContextMap();
+            }
+
+            @Override
+            public void setContextMap(Map contextMap) {
+                copies.incrementAndGet();
+                super.setContextMap(contextMap);
+            }
+        };
+        ExecutorService executorService = Executors.newSingleThreadExecutor();
+        try (BasicMdc ignored = new BasicMdc(counting)) {
+            MDC.put("request", "caller");
+            PriorityTaskQueue pq = new PriorityTaskQueue(1, () -> "caller", s -> {
+            });
+            AtomicInteger seen = new AtomicInteger();
+            for (int i = 0; i < tasks; i++) {
+                pq.addTask(1, q -> {
+                    if ("caller".equals(MDC.get("request"))) {
+                        seen.incrementAndGet();
+                    }
+                });
+            }
+            copies.set(0);
+            assertThat(pq.executeTasksAndAwaitDone(executorService, e -> {
+            }, 5, TimeUnit.SECONDS), is(true));
+
+            assertThat(seen.get(), is(tasks));
+            // the context is only switched when a runner starts and ends
+            assertThat(copies.get(), lessThan(tasks / 10));
+        } finally {
+            MDC.remove("request");
+            executorService.shutdown();
+        }
+    }
+}
@@ -1,16 +1,32 @@
 package no.systek.dataflow;
 
+import no.systek.dataflow.steps.CollectorStep;
 import no.systek.dataflow.steps.PairJoinStep;
 import no.systek.dataflow.steps.SourceStep;
 import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.Test;
 
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
+import java.util.stream.Collectors;
 import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 import static org.hamcrest.core.Is.is;
 import static org.junit.Assert.assertThat;
@@ -28,10 +44,11 @@ public class StepTest extends AbstractStepTest {
             }
         });
 
-        HashSet<Step<Object, ?>> roots = new HashSet<>();
-        steps.get(steps.size() - 1).configureTreeAndFindRoots(new HashSet<>(), roots);
+        GraphPlan plan = steps.get(steps.size() - 1).compile();
 
-        assertThat(roots.size(), is(1));
+        assertThat(plan.getRoots().size(), is(1));
+        assertThat(plan.getSteps(), is(steps));
+        assertThat(plan.hasLoops(), is(false));
         AtomicInteger assertLevel = new AtomicInteger(1);
         steps.forEach(s -> {
             int expectedDepth = assertLevel.getAndIncrement();
@@ -40,6 +57,72 @@ public class StepTest extends AbstractStepTest {
         });
     }
 
+    @Test
+    public void diamondGraphIsCompiledInLinearTime() {
+        // 40 diamonds in a row have 2^40 paths from the root to the tail
+        Step<Object, Object> tail = createStep(0);
+        for (int level = 1; level <= 40; level++) {
+            Step<Object, Object> left = createStep(level);
+            Step<Object, Object> right = createStep(level);
+            Step<Object, Object> join = createStep(level);
+            left.dependsOn(tail.output());
+            right.dependsOn(tail.output());
+            join.dependsOn(left.output());
+            join.dependsOn(right.output());
+            tail = join;
+        }
+
+        GraphPlan plan = tail.compile();
+        assertThat(plan.getSteps().size(), is(121));
+        assertThat(plan.getRoots().size(), is(1));
+        assertThat(plan.getDepth(tail), is(81));
+        assertThat(plan.getParents(tail).size(), is(2));
+        assertThat(tail.compile() == plan, is(true));
+    }
+
+    @Test
+    public void loopsAreDetected() {
+        Step<Object, Object> heat = createStep(1);
+        Step<Object, Object> check = createStep(2);
+        Step<Object, Object> tail = createStep(3);
+        check.dependsOn(heat.output());
+        heat.dependsOn(check.output());
+        tail.dependsOn(check.output());
+
+        GraphPlan plan = tail.compile();
+        assertThat(plan.hasLoops(), is(true));
+        assertThat(plan.getRoots(), is(Collections.singletonList(heat)));
+        assertThat(plan.getDepth(check), is(2));
+        assertThat(plan.getChildren(check).size(), is(2));
+
+        // the plan is compiled again once the graph has changed
+        Step<Object, Object> source = createStep(0);
+        heat.dependsOn(source.output());
+        GraphPlan recompiled = tail.compile();
+        assertThat(recompiled == plan, is(false));
+        assertThat(recompiled.getRoots(), is(Collections.singletonList(source)));
+        assertThat(recompiled.getDepth(tail), is(4));
+    }
+
+    @Test
+    public void plansOfOtherGraphsStayValid() {
+        Step<Object, Object> root = createStep(1);
+        Step<Object, Object> tail = createStep(2);
+        tail.dependsOn(root.output());
+        GraphPlan plan = tail.compile();
+
+        Step<Object, Object> otherRoot = createStep(1);
+        Step<Object, Object> otherTail = createStep(2);
+        otherTail.dependsOn(otherRoot.output());
+        assertThat(tail.compile() == plan, is(true));
+
+        // another child of the root changes its fusion, so the plan is compiled again
+        Step<Object, Object> branch = createStep(2);
+        branch.dependsOn(root.output());
+        assertThat(tail.compile() == plan, is(false));
+        assertThat(tail.compile() == tail.compile(), is(true));
+    }
+
     @Test
     public void sourceStepTest() {
         Assert.assertThat(stepExecutor.execute(Steps.newSource(() -> "Hello world")), is("Hello world"));
@@ -78,6 +161,283 @@ public class StepTest extends AbstractStepTest {
         assertThat(stepExecutor.execute(tail), is("Hello"));
     }
 
+    @Test
+    public void resultsAreStreamed() {
+        Step<Integer, Integer> tail = Steps.newParallel(in -> in * 2);
+        tail.dependsOn(Steps.<Integer, Integer>newParallelListStep(in -> in).output());
+
+        List<Integer> input = IntStream.range(0, 100).boxed().collect(Collectors.toList());
+        assertThat(stepExecutor.executeStream(tail, input, 4).mapToInt(i -> i).sum(), is(9900));
+
+        AtomicInteger sum = new AtomicInteger();
+        stepExecutor.execute(tail, input, sum::addAndGet);
+        assertThat(sum.get(), is(9900));
+    }
+
+    @Test
+    public void closingAStreamStopsTheExecution() throws Exception {
+        Step<Integer, Integer> tail = Steps.newParallel(in -> in * 2);
+        tail.dependsOn(Steps.<Integer, Integer>newParallelListStep(in -> in).output());
+        List<Integer> input = IntStream.range(0, 1000).boxed().collect(Collectors.toList());
+
+        try (Stream<Integer> results = stepExecutor.executeStream(tail, input, 1)) {
+            assertThat(results.findFirst().isPresent(), is(true));
+        }
+
+        // the tasks waiting for room in the buffer must not keep the threads of the executor blocked
+        Step<Integer, Integer> other = Steps.newParallel(in -> in);
+        other.dependsOn(Steps.<Integer, Integer>newParallelListStep(in -> in).output());
+        assertThat(stepExecutor.executeListAsync(other, input).get(5, TimeUnit.SECONDS).size(), is(1000));
+    }
+
+    @Test
+    public void pipelineKeepsRunning() throws InterruptedException {
+        CollectorStep<Integer> collector = Steps.newCollector(Integer.MAX_VALUE);
+        Step<List<Integer>, Integer> sum = Steps.newSingle(in -> in.stream().mapToInt(i -> i).sum());
+        sum.dependsOn(collector.output());
+        collector.dependsOn(Steps.<Integer, Integer>newParallelListStep(in -> in).output());
+
+        BlockingQueue<Integer> results = new LinkedBlockingQueue<>();
+        Pipeline<Integer> pipeline = stepExecutor.startPipeline(sum, results::add);
+
+        pipeline.feed(Arrays.asList(1, 2, 3));
+        assertThat(results.poll(5, TimeUnit.SECONDS), is(6));
+
+        pipeline.feed(Arrays.asList(4, 5));
+        assertThat(results.poll(5, TimeUnit.SECONDS), is(9));
+
+        assertThat(pipeline.close(5, TimeUnit.SECONDS), is(true));
+        assertThat(results.isEmpty(), is(true));
+    }
+
+    @Test
+    public void graphCanBeExecutedConcurrently() throws Exception {
+        CollectorStep<Integer> collector = Steps.newCollector(Integer.MAX_VALUE);
+        Step<List<Integer>, Integer> sum = Steps.newSingle(in -> in.stream().mapToInt(i -> i).sum());
+        sum.dependsOn(collector.output());
+        collector.dependsOn(Steps.<Integer, Integer>newParallelListStep(in -> in).output());
+
+        ExecutorService callers = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Integer>> results = new LinkedList<>();
+            for (int i = 1; i <= 20; i++) {
+                List<Integer> input = IntStream.rangeClosed(1, i).boxed().collect(Collectors.toList());
+                results.add(callers.submit(() -> stepExecutor.execute(sum, input)));
+            }
+            for (int i = 1; i <= 20; i++) {
+                assertThat(results.get(i - 1).get(), is(i * (i + 1) / 2));
+            }
+        } finally {
+            callers.shutdown();
+        }
+    }
+
+    @Test
+    public void graphCanBeExecutedAsync() {
+        CollectorStep<Integer> collector = Steps.newCollector(Integer.MAX_VALUE);
+        Step<List<Integer>, Integer> sum = Steps.newSingle(in -> in.stream().mapToInt(i -> i).sum());
+        sum.dependsOn(collector.output());
+        collector.dependsOn(Steps.<Integer, Integer>newParallelListStep(in -> in).output());
+
+        List<CompletableFuture<Integer>> results = new LinkedList<>();
+        for (int i = 1; i <= 200; i++) {
+            results.add(stepExecutor.executeAsync(sum, IntStream.rangeClosed(1, i).boxed().collect(Collectors.toList())));
+        }
+        for (int i = 1; i <= 200; i++) {
+            assertThat(results.get(i - 1).join(), is(i * (i + 1) / 2));
+        }
+        // the timeouts of the finished executions do not keep them reachable
+        assertThat(((ScheduledThreadPoolExecutor) Timers.SCHEDULER).getQueue().size() < 10, is(true));
+
+        StepExecutor shortTimeout = new StepExecutor(executorService, s -> {
+        }, () -> null, 5, 50, TimeUnit.MILLISECONDS);
+        CompletableFuture<List<Object>> timedOut = shortTimeout.executeListAsync(Steps.newSource(() -> {
+            sleep(500);
+            return "late";
+        }));
+        try {
+            timedOut.join();
+            Assert.fail("Expected timeout");
+        } catch (CompletionException e) {
+            assertThat(e.getCause().getMessage(), is("Timeout during execution"));
+        }
+    }
+
+    @Test
+    public void boundedMailboxSuspendsParent() {
+        AtomicInteger produced = new AtomicInteger();
+        AtomicInteger consumed = new AtomicInteger();
+        AtomicInteger maxBacklog = new AtomicInteger();
+
+        Step<Integer, Integer> producer = Steps.newParallel(in -> {
+            produced.incrementAndGet();
+            return in;
+        });
+        Step<Integer, Integer> consumer = Steps.newSingle(in -> {
+            maxBacklog.accumulateAndGet(produced.get() - consumed.incrementAndGet(), Math::max);
+            sleep(1);
+            return in;
+        });
+        consumer.setMailboxCapacity(5, Step.OverflowPolicy.BACKPRESSURE);
+        consumer.dependsOn(producer.output());
+        producer.dependsOn(Steps.<Integer, Integer>newParallelListStep(in -> in).output());
+
+        List<Integer> input = IntStream.range(0, 200).boxed().collect(Collectors.toList());
+        assertThat(stepExecutor.executeList(consumer, input).size(), is(200));
+        assertThat(maxBacklog.get() <= 5, is(true));
+    }
+
+    @Test
+    public void boundedMailboxDropsInputs() {
+        Step<Integer, Integer> consumer = Steps.newSingle(in -> {
+            sleep(5);
+            return in;
+        });
+        consumer.setMailboxCapacity(1, Step.OverflowPolicy.DROP_NEWEST);
+        consumer.dependsOn(Steps.<Integer, Integer>newParallelListStep(in -> in).output());
+
+        List<Integer> input = IntStream.range(0, 100).boxed().collect(Collectors.toList());
+        int results = stepExecutor.executeList(consumer, input).size();
+        assertThat(results > 0 && results < 100, is(true));
+    }
+
+    @Test
+    public void batchingRunsSeveralInputsPerTask() {
+        Set<Long> threads = ConcurrentHashMap.newKeySet();
+        Step<Integer, Integer> batched = Steps.newSingle(in -> {
+            if (in == 0) {
+                // let all other inputs arrive in the mailbox
+                sleep(100);
+            }
+            threads.add(Thread.currentThread().getId());
+            return in;
+        });
+        batched.setBatching(1000, 10, TimeUnit.SECONDS);
+        batched.dependsOn(Steps.<Integer, Integer>newParallelListStep(in -> in).output());
+
+        List<Integer> input = IntStream.range(0, 1000).boxed().collect(Collectors.toList());
+        assertThat(stepExecutor.executeList(batched, input), is(input));
+        assertThat(threads.size(), is(1));
+    }
+
+    @Test
+    public void linearChainIsFused() {
+        ThreadLocal<Integer> lastInput = new ThreadLocal<>();
+        AtomicInteger otherThread = new AtomicInteger();
+        Step<Integer, Integer> first = Steps.newParallel(in -> {
+            lastInput.set(in);
+            return in;
+        });
+        Step<Integer, Integer> second = Steps.newParallel(in -> {
+            if (!in.equals(lastInput.get())) {
+                otherThread.incrementAndGet();
+            }
+            return in + 1;
+        });
+        Step<Integer, Integer> third = Steps.newParallel(in -> in * 2);
+        third.dependsOn(second.output());
+        second.dependsOn(first.output());
+        first.dependsOn(Steps.<Integer, Integer>newParallelListStep(in -> in).output());
+
+        List<Integer> input = IntStream.range(0, 100).boxed().collect(Collectors.toList());
+        assertThat(stepExecutor.executeList(third, input).stream().mapToInt(i -> i).sum(), is(10100));
+        assertThat(otherThread.get(), is(0));
+    }
+
+    @Test
+    public void fusionKeepsSingleStepsSingle() {
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        Step<Integer, Integer> single = Steps.newSingle(in -> {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            sleep(5);
+            running.decrementAndGet();
+            return in;
+        });
+        Step<Integer, Integer> parallel = Steps.newParallel(in -> in);
+        single.dependsOn(parallel.output());
+        parallel.dependsOn(Steps.<Integer, Integer>newParallelListStep(in -> in).output());
+
+        List<Integer> input = IntStream.range(0, 20).boxed().collect(Collectors.toList());
+        assertThat(stepExecutor.executeList(single, input).size(), is(20));
+        assertThat(maxRunning.get(), is(1));
+    }
+
+    @Test
+    public void parallelStepIsLimitedPerStep() {
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        Step<Integer, Integer> limited = Steps.newParallel(in -> {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            sleep(20);
+            running.decrementAndGet();
+            return in;
+        }, 2);
+        limited.dependsOn(Steps.<Integer, Integer>newParallelListStep(in -> in).output());
+
+        List<Integer> input = IntStream.range(0, 10).boxed().collect(Collectors.toList());
+        assertThat(stepExecutor.executeList(limited, input).size(), is(10));
+        assertThat(maxRunning.get() <= 2, is(true));
+    }
+
+    @Test
+    public void virtualThreadsTest() {
+        Assume.assumeTrue(VirtualThreads.isSupported());
+        StepExecutor executor = StepExecutor.withVirtualThreads(s -> {
+        }, () -> null, 20, TimeUnit.SECONDS);
+        assertThat(executor.execute(Steps.<Integer, Integer>newParallel(in -> in + 1), 1), is(2));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void virtualThreadsAreRejectedWithoutSupport() {
+        Assume.assumeFalse(VirtualThreads.isSupported());
+        StepExecutor.withVirtualThreads(s -> {
+        }, () -> null, 20, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void collectorAndJoinerSubclassesCanOverrideRun() {
+        List<Object> collected = Collections.synchronizedList(new LinkedList<>());
+        // the cleanup marker goes through run as well, so the input type of such a subclass must be Object
+        CollectorStep<Object> collector = new CollectorStep<Object>("collector", Integer.MAX_VALUE) {
+            @Override
+            protected void run(Object input, Consumer<List<Object>> onResult) {
+                super.run(input, items -> {
+                    collected.addAll(items);
+                    onResult.accept(items);
+                });
+            }
+        };
+        collector.dependsOn(Steps.<Object, Object>newParallelListStep(in -> in).output());
+
+        AtomicInteger joined = new AtomicInteger();
+        PairJoinStep<List<Object>, String, String> joiner = new PairJoinStep<List<Object>, String, String>("joiner") {
+            @Override
+            protected void run(Object input, Consumer<String> onResult) {
+                super.run(input, output -> {
+                    joined.incrementAndGet();
+                    onResult.accept(output);
+                });
+            }
+
+            @Override
+            protected String join(List<Object> left, String right) {
+                return right + left.size();
+            }
+
+            @Override
+            protected boolean isLeft(Object input) {
+                return input instanceof List;
+            }
+        };
+        joiner.dependsOnLeft(collector.output());
+        joiner.dependsOnRight(Steps.<Object, String>newSingle(in -> "size ").output());
+
+        assertThat(stepExecutor.execute(joiner, Arrays.asList(1, 2, 3)), is("size 3"));
+        assertThat(collected.size(), is(3));
+        assertThat(joined.get(), is(1));
+    }
+
     private Step<Object, Object> createStep(int level) {
         return new SourceStep<Object>(String.valueOf(level), Integer.MAX_VALUE) {
             @Override
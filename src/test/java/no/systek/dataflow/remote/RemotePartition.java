@@ -0,0 +1,46 @@
+package no.systek.dataflow.remote;
+
+import no.systek.dataflow.Pipeline;
+import no.systek.dataflow.Step;
+import no.systek.dataflow.StepExecutor;
+import no.systek.dataflow.Steps;
+import no.systek.dataflow.steps.CollectorStep;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Middle partition of the graph in RemoteTest, run in its own JVM: doubles the numbers it receives, and sends
+ * their sum back once all of them have arrived
+ */
+public class RemotePartition {
+
+    public static void main(String[] args) throws Exception {
+        StepExecutor executor = new StepExecutor(Executors.newFixedThreadPool(4), s -> {
+        }, () -> null, 4, 60, TimeUnit.SECONDS);
+
+        try (TcpTransport transport = new TcpTransport(0)) {
+            RemoteSource<Integer> numbers = new RemoteSource<>("numbers");
+            Step<Integer, Integer> twice = Steps.newParallel(i -> i * 2);
+            twice.dependsOn(numbers.output());
+            CollectorStep<Integer> all = Steps.newCollector(Integer.MAX_VALUE);
+            all.dependsOn(twice.output());
+            Step<List<Integer>, Integer> sum = Steps.newSingle(in -> in.stream().mapToInt(i -> i).sum());
+            sum.dependsOn(all.output());
+            RemoteSink<Integer> sums = new RemoteSink<>("sums", transport, args[0], "sums", 16, 4);
+            sums.dependsOn(sum.output());
+
+            Pipeline<Void> pipeline = executor.startPipeline(sums, result -> {
+            });
+            numbers.listen(transport, "numbers", pipeline);
+            System.out.println("ADDRESS " + transport.getAddress());
+            System.out.flush();
+
+            // keep running until the test closes our input
+            while (System.in.read() >= 0) {
+            }
+        }
+        System.exit(0);
+    }
+}
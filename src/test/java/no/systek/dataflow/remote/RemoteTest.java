@@ -0,0 +1,148 @@
+package no.systek.dataflow.remote;
+
+import no.systek.dataflow.AbstractStepTest;
+import no.systek.dataflow.Pipeline;
+import no.systek.dataflow.Steps;
+import no.systek.dataflow.steps.CollectorStep;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.Serializable;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class RemoteTest extends AbstractStepTest {
+
+    @Test
+    public void graphRunsAcrossProcesses() throws Exception {
+        try (TcpTransport transport = new TcpTransport(0)) {
+            // last partition, receiving the sum from the other process
+            RemoteSource<Integer> sums = new RemoteSource<>("sums");
+            BlockingQueue<Integer> results = new LinkedBlockingQueue<>();
+            Pipeline<Integer> pipeline = stepExecutor.startPipeline(sums, results::add);
+            sums.listen(transport, "sums", pipeline);
+
+            Process partition = new ProcessBuilder(
+                    System.getProperty("java.home") + File.separator + "bin" + File.separator + "java",
+                    "-cp", System.getProperty("java.class.path"),
+                    RemotePartition.class.getName(),
+                    transport.getAddress())
+                    .redirectError(ProcessBuilder.Redirect.INHERIT)
+                    .start();
+            try {
+                BufferedReader output = new BufferedReader(new InputStreamReader(partition.getInputStream()));
+                String address = output.readLine().substring("ADDRESS ".length());
+
+                // first partition, sending the numbers to the other process in small batches
+                RemoteSink<Integer> numbers = new RemoteSink<>("numbers", transport, address, "numbers", 64, 2);
+                numbers.dependsOn(Steps.<Integer, Integer>newParallelListStep(in -> in).output());
+                List<Integer> input = IntStream.rangeClosed(1, 1000).boxed().collect(Collectors.toList());
+                stepExecutor.execute(numbers, input);
+
+                // the other process only sums up once it has all numbers, so there is exactly one sum
+                assertThat(pipeline.close(20, TimeUnit.SECONDS), is(true));
+                assertThat(new ArrayList<>(results), is(Collections.singletonList(1001000)));
+                numbers.close();
+            } finally {
+                partition.getOutputStream().close();
+                partition.destroy();
+            }
+        }
+    }
+
+    @Test
+    public void onlyAllowedClassesAreReceived() throws Exception {
+        InetSocketAddress loopback = new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+        try (TcpTransport transport = new TcpTransport(loopback, Payload.class.getName()::equals);
+             TcpTransport strict = new TcpTransport(0)) {
+            for (TcpTransport receiver : Arrays.asList(transport, strict)) {
+                BlockingQueue<List<Object>> received = new LinkedBlockingQueue<>();
+                receiver.bind("payloads", (inputs, idle, ack) -> {
+                    received.add(inputs);
+                    ack.run();
+                });
+                try (Transport.Sender sender = receiver.connect(receiver.getAddress(), "payloads", 1)) {
+                    // one batch in flight, so the second batch is only sent once the first has been acknowledged
+                    sender.send(Collections.singletonList(42), false);
+                    sender.send(Collections.singletonList(new Payload()), false);
+                    assertThat(received.poll(5, TimeUnit.SECONDS), is(Collections.singletonList(42)));
+
+                    List<Object> payload = received.poll(receiver == strict ? 200 : 5000, TimeUnit.MILLISECONDS);
+                    assertThat(payload != null && payload.get(0) instanceof Payload, is(receiver != strict));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void emptyPartitionLetsReceiverBecomeIdle() throws Exception {
+        try (TcpTransport transport = new TcpTransport(0)) {
+            RemoteSource<Integer> numbers = new RemoteSource<>("numbers");
+            CollectorStep<Integer> all = Steps.newCollector(Integer.MAX_VALUE);
+            all.dependsOn(numbers.output());
+            BlockingQueue<List<Integer>> results = new LinkedBlockingQueue<>();
+            Pipeline<List<Integer>> pipeline = stepExecutor.startPipeline(all, results::add);
+            numbers.listen(transport, "numbers", pipeline);
+
+            // sends nothing, since the list is empty
+            RemoteSink<Integer> sink = new RemoteSink<>("numbers", transport, transport.getAddress(), "numbers", 64, 2);
+            sink.dependsOn(Steps.<Integer, Integer>newParallelListStep(in -> in).output());
+            stepExecutor.execute(sink, Collections.emptyList());
+
+            assertThat(pipeline.close(5, TimeUnit.SECONDS), is(true));
+            assertThat(results.isEmpty(), is(true));
+            sink.close();
+        }
+    }
+
+    @Test
+    public void slowReceiverDoesNotStallOtherConnections() throws Exception {
+        try (TcpTransport transport = new TcpTransport(0)) {
+            CountDownLatch slowReceived = new CountDownLatch(1);
+            CountDownLatch proceed = new CountDownLatch(1);
+            transport.bind("slow", (inputs, idle, ack) -> {
+                slowReceived.countDown();
+                try {
+                    proceed.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                ack.run();
+            });
+            BlockingQueue<List<Object>> received = new LinkedBlockingQueue<>();
+            transport.bind("fast", (inputs, idle, ack) -> {
+                received.add(inputs);
+                ack.run();
+            });
+
+            try (Transport.Sender slow = transport.connect(transport.getAddress(), "slow", 1);
+                 Transport.Sender fast = transport.connect(transport.getAddress(), "fast", 1)) {
+                slow.send(Collections.singletonList(1), false);
+                assertThat(slowReceived.await(5, TimeUnit.SECONDS), is(true));
+
+                fast.send(Collections.singletonList(2), false);
+                assertThat(received.poll(5, TimeUnit.SECONDS), is(Collections.singletonList(2)));
+                proceed.countDown();
+            }
+        }
+    }
+
+    private static class Payload implements Serializable {
+        private static final long serialVersionUID = 1L;
+    }
+}
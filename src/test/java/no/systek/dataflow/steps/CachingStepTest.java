@@ -0,0 +1,123 @@
+package no.systek.dataflow.steps;
+
+import no.systek.dataflow.AbstractStepTest;
+import no.systek.dataflow.Steps;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class CachingStepTest extends AbstractStepTest {
+
+    @Test
+    public void computesEachKeyOnce() {
+        AtomicInteger calls = new AtomicInteger();
+        ResultCache<Integer, Integer> cache = new ResultCache<>(100);
+        CachingStep<Integer, Integer, Integer> cached = Steps.newCached(i -> i % 10, i -> {
+            calls.incrementAndGet();
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(20));
+            return i % 10 * 2;
+        }, cache);
+        cached.dependsOn(Steps.<Integer, Integer>newParallelListStep(in -> in).output());
+        CollectorStep<Integer> collector = Steps.newCollector(Integer.MAX_VALUE);
+        collector.dependsOn(cached.output());
+
+        List<Integer> input = IntStream.range(0, 100).boxed().collect(Collectors.toList());
+        List<Integer> expected = input.stream().map(i -> i % 10 * 2).sorted().collect(Collectors.toList());
+        for (int execution = 1; execution <= 2; execution++) {
+            List<Integer> result = new ArrayList<>(stepExecutor.execute(collector, input));
+            Collections.sort(result);
+            assertThat(result, is(expected));
+        }
+
+        // concurrent misses wait for the running computation, and the second execution only hits
+        assertThat(calls.get(), is(10));
+        assertThat(cache.getMisses(), is(10L));
+        assertThat(cache.getHits() + cache.getCoalesced(), is(190L));
+
+        // least recently used and expired results are evicted
+        ResultCache<Integer, Integer> small = new ResultCache<>(2, 200, TimeUnit.MILLISECONDS);
+        CachingStep<Integer, Integer, Integer> lru = Steps.newCached(i -> i, i -> i, small, 1);
+        lru.dependsOn(Steps.<Integer, Integer>newParallelListStep(in -> in).output());
+        assertThat(stepExecutor.executeList(lru, Arrays.asList(1, 2, 1, 3, 1, 2)), is(Arrays.asList(1, 2, 1, 3, 1, 2)));
+        assertThat(small.getMisses(), is(4L));
+        assertThat(small.getEvictions(), is(2L));
+        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(250));
+        stepExecutor.executeList(lru, Collections.singletonList(1));
+        assertThat(small.getMisses(), is(5L));
+    }
+
+    @Test
+    public void failedComputationIsNotCached() {
+        AtomicInteger calls = new AtomicInteger();
+        ResultCache<Integer, Integer> cache = new ResultCache<>(10);
+        CachingStep<Integer, Integer, Integer> cached = Steps.newCached(i -> i, i -> {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(20));
+            if (calls.incrementAndGet() == 1) {
+                // not a runtime exception, which must not leave the entry unfinished either
+                throw sneaky(new IOException("Fails once"));
+            }
+            return i * 2;
+        }, cache);
+        cached.dependsOn(Steps.<Integer, Integer>newParallelListStep(in -> in).output());
+
+        Queue<Integer> results = new ConcurrentLinkedQueue<>();
+        try {
+            stepExecutor.execute(cached, Arrays.asList(1, 1, 1), results::add);
+            Assert.fail("Should have failed");
+        } catch (RuntimeException expected) {
+            // the first computation failed
+        }
+        // the inputs which waited for it have been computed again
+        assertThat(new ArrayList<>(results), is(Arrays.asList(2, 2)));
+        assertThat(calls.get(), is(2));
+
+        assertThat(stepExecutor.execute(cached, Collections.singletonList(1)), is(2));
+        assertThat(calls.get(), is(2));
+    }
+
+    @Test
+    public void resultsBeingComputedAreNotEvicted() {
+        ResultCache<Integer, Integer> cache = new ResultCache<>(1);
+        ResultCache.Entry<Integer> computing = cache.acquire(1, null);
+        cache.complete(cache.acquire(2, null), 4);
+        cache.acquire(3, null);
+
+        assertThat(cache.getEvictions(), is(1L));
+        AtomicInteger waiting = new AtomicInteger();
+        ResultCache.Entry<Integer> coalesced = cache.acquire(1, new ResultCache.Waiter<Integer>() {
+            @Override
+            public void waiting() {
+                waiting.incrementAndGet();
+            }
+
+            @Override
+            public void done(Integer value, boolean failed) {
+                waiting.decrementAndGet();
+            }
+        });
+        assertThat(coalesced == null, is(true));
+        assertThat(waiting.get(), is(1));
+        cache.complete(computing, 2);
+        assertThat(waiting.get(), is(0));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <E extends Throwable> RuntimeException sneaky(Throwable e) throws E {
+        throw (E) e;
+    }
+}
@@ -0,0 +1,85 @@
+package no.systek.dataflow.steps;
+
+import no.systek.dataflow.AbstractStepTest;
+import no.systek.dataflow.Steps;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class ChunkedListStepTest extends AbstractStepTest {
+
+    @Test
+    public void chunkedListStepKeepsOrder() {
+        AtomicInteger chunks = new AtomicInteger();
+        ListStep<Integer, Integer> twice = Steps.newChunkedListStep(in -> {
+            chunks.incrementAndGet();
+            return in.stream().map(i -> i * 2).collect(Collectors.toList());
+        }, 100);
+        CollectorStep<Integer> collector = Steps.newCollector(Integer.MAX_VALUE);
+        collector.dependsOn(twice.output());
+
+        List<Integer> input = IntStream.range(0, 10_000).boxed().collect(Collectors.toList());
+        List<Integer> result = stepExecutor.execute(collector, input);
+
+        assertThat(result, is(IntStream.range(0, 10_000).map(i -> i * 2).boxed().collect(Collectors.toList())));
+        assertThat(chunks.get(), is(100));
+
+        // adaptive chunk size
+        ListStep<Integer, Integer> same = Steps.newChunkedListStep(in -> in, 0);
+        CollectorStep<Integer> all = Steps.newCollector(Integer.MAX_VALUE);
+        all.dependsOn(same.output());
+        assertThat(stepExecutor.execute(all, input), is(input));
+    }
+
+    @Test
+    public void failedChunkDoesNotDropTheOtherChunks() {
+        ListStep<Integer, Integer> chunked = Steps.newChunkedListStep(in -> {
+            if (in.contains(25)) {
+                throw new IllegalStateException("failed chunk");
+            }
+            return in;
+        }, 10);
+
+        List<Integer> results = Collections.synchronizedList(new ArrayList<>());
+        try {
+            stepExecutor.execute(chunked, IntStream.range(0, 50).boxed().collect(Collectors.toList()), results::add);
+            Assert.fail("The failed chunk must be reported");
+        } catch (RuntimeException expected) {
+            // the failure of the chunk
+        }
+
+        assertThat(results, is(IntStream.range(0, 50).filter(i -> i < 20 || i >= 30).boxed()
+            .collect(Collectors.toList())));
+    }
+
+    @Test
+    public void emptyListHasNoOutputs() {
+        ListStep<Integer, Integer> chunked = Steps.newChunkedListStep(in -> in, 10);
+        List<Integer> results = Collections.synchronizedList(new ArrayList<>());
+        stepExecutor.execute(chunked, Collections.emptyList(), results::add);
+        assertThat(results.isEmpty(), is(true));
+    }
+
+    @Test
+    public void listSmallerThanOneChunkIsOneChunk() {
+        AtomicInteger chunks = new AtomicInteger();
+        ListStep<Integer, Integer> chunked = Steps.newChunkedListStep(in -> {
+            chunks.incrementAndGet();
+            return in;
+        }, 10);
+        List<Integer> results = Collections.synchronizedList(new ArrayList<>());
+        stepExecutor.execute(chunked, Arrays.asList(1, 2, 3), results::add);
+        assertThat(results, is(Arrays.asList(1, 2, 3)));
+        assertThat(chunks.get(), is(1));
+    }
+}
@@ -0,0 +1,51 @@
+package no.systek.dataflow.steps;
+
+import no.systek.dataflow.AbstractStepTest;
+import no.systek.dataflow.Steps;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class KeyedJoinStepTest extends AbstractStepTest {
+
+    @Test
+    public void keyedJoinerTest() {
+        KeyedJoinStep<String, String, String, String> inner = newKeyedJoiner(KeyedJoinStep.JoinMode.INNER);
+        KeyedJoinStep<String, String, String, String> outer = newKeyedJoiner(KeyedJoinStep.JoinMode.FULL_OUTER);
+        List<String> input = Arrays.asList("L1", "L2", "R9", "R2", "L3", "R1", "R3", "L8");
+
+        assertThat(new HashSet<>(stepExecutor.executeList(inner, input)),
+            is(new HashSet<>(Arrays.asList("L1:R1", "L2:R2", "L3:R3"))));
+        assertThat(new HashSet<>(stepExecutor.executeList(outer, input)),
+            is(new HashSet<>(Arrays.asList("L1:R1", "L2:R2", "L3:R3", "null:R9", "L8:null"))));
+    }
+
+    @Test
+    public void keyedJoinerEvictsOldestInputs() {
+        KeyedJoinStep<String, String, String, String> join = newKeyedJoiner(KeyedJoinStep.JoinMode.LEFT_OUTER);
+        join.setEviction(2, 1, TimeUnit.HOURS);
+        List<String> input = Arrays.asList("L1", "L2", "L3", "L4", "L5", "R1", "R2", "R3", "R4", "R5");
+
+        assertThat(stepExecutor.executeList(join, input),
+            is(Arrays.asList("L1:null", "L2:null", "L3:null", "L4:R4", "L5:R5")));
+    }
+
+    private static KeyedJoinStep<String, String, String, String> newKeyedJoiner(KeyedJoinStep.JoinMode mode) {
+        KeyedJoinStep<String, String, String, String> join = Steps.newKeyedJoiner(
+            in -> ((String) in).startsWith("L"),
+            left -> left.substring(1),
+            right -> right.substring(1),
+            (left, right) -> left + ":" + right,
+            mode);
+        // both sides come from the same list, isLeft() tells them apart
+        join.dependsOnLeft(Steps.<String, String>newParallelListStep(in -> in).output());
+        return join;
+    }
+
+}
@@ -0,0 +1,114 @@
+package no.systek.dataflow.steps;
+
+import no.systek.dataflow.AbstractStepTest;
+import no.systek.dataflow.Pipeline;
+import no.systek.dataflow.Step;
+import no.systek.dataflow.StepExecutor;
+import no.systek.dataflow.Steps;
+import no.systek.dataflow.metrics.DataflowMetrics;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class KeyedStepTest extends AbstractStepTest {
+
+    @Test
+    public void keyedStepIsSerialPerKey() {
+        Map<Integer, List<Integer>> seen = new ConcurrentHashMap<>();
+        Map<Integer, AtomicInteger> runningPerKey = new ConcurrentHashMap<>();
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        AtomicInteger maxRunningPerKey = new AtomicInteger();
+
+        Step<Integer, Integer> keyed = Steps.newKeyed(in -> in % 4, in -> {
+            int perKey = runningPerKey.computeIfAbsent(in % 4, k -> new AtomicInteger()).incrementAndGet();
+            maxRunningPerKey.accumulateAndGet(perKey, Math::max);
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            seen.computeIfAbsent(in % 4, k -> Collections.synchronizedList(new ArrayList<>())).add(in);
+            sleep(1);
+            running.decrementAndGet();
+            runningPerKey.get(in % 4).decrementAndGet();
+            return in;
+        }, Integer.MAX_VALUE);
+        keyed.dependsOn(Steps.<Integer, Integer>newParallelListStep(in -> in).output());
+
+        List<Integer> input = IntStream.range(0, 200).boxed().collect(Collectors.toList());
+        assertThat(stepExecutor.executeList(keyed, input).size(), is(200));
+
+        assertThat(maxRunningPerKey.get(), is(1));
+        assertThat(maxRunning.get() > 1, is(true));
+        seen.forEach((key, values) -> assertThat(values, is(values.stream().sorted().collect(Collectors.toList()))));
+    }
+
+    @Test
+    public void burstOfAStripeIsProcessedByOneTask() throws Exception {
+        CountDownLatch fed = new CountDownLatch(1);
+        List<Integer> results = Collections.synchronizedList(new ArrayList<>());
+        Step<Integer, Integer> keyed = Steps.newKeyed(in -> "same", in -> {
+            await(fed);
+            return in;
+        }, 4);
+        AtomicInteger tasks = new AtomicInteger();
+        DataflowMetrics metrics = new DataflowMetrics() {
+            @Override
+            public void taskScheduled(Step<?, ?> step, int scheduledJobs, int maxParallelExecution) {
+                if (step == keyed) {
+                    tasks.incrementAndGet();
+                }
+            }
+        };
+        StepExecutor executor = new StepExecutor(executorService, s -> {
+        }, () -> null, 5, 20, TimeUnit.SECONDS, metrics);
+
+        Pipeline<Integer> pipeline = executor.startPipeline(keyed, results::add);
+        for (int i = 0; i < 100; i++) {
+            pipeline.feed(i);
+        }
+        fed.countDown();
+        assertThat(pipeline.close(5, TimeUnit.SECONDS), is(true));
+
+        assertThat(results, is(IntStream.range(0, 100).boxed().collect(Collectors.toList())));
+        assertThat(tasks.get(), is(1));
+    }
+
+    @Test
+    public void failedInputDoesNotStallItsStripe() {
+        List<Integer> results = Collections.synchronizedList(new ArrayList<>());
+        Step<Integer, Integer> keyed = Steps.newKeyed(in -> "same", in -> {
+            if (in == 3) {
+                throw new IllegalStateException("failed " + in);
+            }
+            return in;
+        }, 4);
+
+        // the pipeline only logs the failure, so the inputs after it show whether the stripe continues
+        Pipeline<Integer> pipeline = stepExecutor.startPipeline(keyed, results::add);
+        for (int i = 0; i < 10; i++) {
+            pipeline.feed(i);
+        }
+        assertThat(pipeline.close(5, TimeUnit.SECONDS), is(true));
+
+        assertThat(results, is(Arrays.asList(0, 1, 2, 4, 5, 6, 7, 8, 9)));
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            assertThat(latch.await(5, TimeUnit.SECONDS), is(true));
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package no.systek.dataflow.steps;
+
+import no.systek.dataflow.AbstractStepTest;
+import no.systek.dataflow.Pipeline;
+import no.systek.dataflow.Step;
+import no.systek.dataflow.StepExecutor;
+import no.systek.dataflow.Steps;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class SpillingQueueTest extends AbstractStepTest {
+
+    @Test
+    public void spilledItemsAreReadBackInOrder() throws Exception {
+        File directory = Files.createTempDirectory("spill").toFile();
+        try {
+            SpillingQueue<Integer> queue = new SpillingQueue<>(3, directory);
+            IntStream.range(0, 10).forEach(queue::add);
+            assertThat(queue.size(), is(10));
+            assertThat(directory.list().length, is(1));
+
+            List<Integer> polled = new ArrayList<>();
+            for (int i = 0; i < 5; i++) {
+                polled.add(queue.poll());
+            }
+            // items added while others are spilled go after them
+            IntStream.range(10, 15).forEach(queue::add);
+            Integer item;
+            while ((item = queue.poll()) != null) {
+                polled.add(item);
+            }
+
+            assertThat(polled, is(IntStream.range(0, 15).boxed().collect(Collectors.toList())));
+            assertThat(queue.isEmpty(), is(true));
+            assertThat(directory.list().length, is(0));
+        } finally {
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void clearingDeletesTheSpillFile() throws Exception {
+        File directory = Files.createTempDirectory("spill").toFile();
+        try {
+            SpillingQueue<Integer> queue = new SpillingQueue<>(3, directory);
+            IntStream.range(0, 10).forEach(queue::add);
+            assertThat(directory.list().length, is(1));
+
+            queue.clear();
+            assertThat(queue.isEmpty(), is(true));
+            assertThat(directory.list().length, is(0));
+        } finally {
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void collectorSpillsToDisk() throws Exception {
+        File directory = Files.createTempDirectory("spill").toFile();
+        try {
+            CollectorStep<Integer> collector = Steps.newCollector(Integer.MAX_VALUE);
+            collector.setSpilling(10, directory);
+            Step<List<Integer>, Integer> sum = Steps.newSingle(in -> in.stream().mapToInt(i -> i).sum());
+            sum.dependsOn(collector.output());
+            collector.dependsOn(Steps.<Integer, Integer>newParallelListStep(in -> in).output());
+
+            BlockingQueue<Integer> results = new LinkedBlockingQueue<>();
+            Pipeline<Integer> pipeline = stepExecutor.startPipeline(sum, results::add);
+            // the collector keeps its items until the pipeline is released
+            pipeline.hold();
+            pipeline.feed(IntStream.range(0, 1000).boxed().collect(Collectors.toList()));
+            awaitFiles(directory, 1);
+
+            pipeline.release();
+            assertThat(pipeline.close(5, TimeUnit.SECONDS), is(true));
+            assertThat(new ArrayList<>(results), is(Collections.singletonList(499500)));
+            assertThat(directory.list().length, is(0));
+        } finally {
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void joinerSpillsToDisk() throws Exception {
+        File directory = Files.createTempDirectory("spill").toFile();
+        try {
+            PairJoinStep<String, String, String> join = Steps.newJoiner(
+                in -> ((String) in).startsWith("L"), (left, right) -> left + ":" + right);
+            join.setSpilling(10, directory);
+            join.dependsOnLeft(Steps.<String, String>newParallelListStep(in -> in).output());
+
+            BlockingQueue<String> joined = new LinkedBlockingQueue<>();
+            Pipeline<String> pipeline = stepExecutor.startPipeline(join, joined::add);
+            // the left inputs wait for their right inputs, instead of being dropped once the pipeline is idle
+            pipeline.hold();
+            pipeline.feed(IntStream.range(0, 100).mapToObj(i -> "L" + i).collect(Collectors.toList()));
+            awaitFiles(directory, 1);
+
+            pipeline.feed(IntStream.range(0, 100).mapToObj(i -> "R" + i).collect(Collectors.toList()));
+            pipeline.release();
+            assertThat(pipeline.close(5, TimeUnit.SECONDS), is(true));
+            List<String> all = new ArrayList<>(joined);
+            assertThat(all.size(), is(100));
+            assertThat(all.get(99), is("L99:R99"));
+            assertThat(directory.list().length, is(0));
+        } finally {
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void spillFilesOfStoppedExecutionsAreDeleted() throws Exception {
+        File directory = Files.createTempDirectory("spill").toFile();
+        try {
+            CollectorStep<Integer> collector = Steps.newCollector(Integer.MAX_VALUE);
+            collector.setSpilling(10, directory);
+            Step<Integer, Integer> slow = Steps.newParallel(i -> {
+                if (i == 0) {
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(500));
+                }
+                return i;
+            });
+            collector.dependsOn(slow.output());
+            slow.dependsOn(Steps.<Integer, Integer>newParallelListStep(in -> in).output());
+
+            StepExecutor timingOut = new StepExecutor(executorService, s -> {
+            }, () -> null, 5, 200, TimeUnit.MILLISECONDS);
+            try {
+                timingOut.execute(collector, IntStream.range(0, 1000).boxed().collect(Collectors.toList()));
+                Assert.fail("Should have timed out");
+            } catch (RuntimeException expected) {
+                // the collector has spilled its items, but never pushed them
+            }
+
+            // once the slow task has completed
+            long deadline = System.currentTimeMillis() + 5000;
+            while (directory.list().length > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertThat(directory.list().length, is(0));
+        } finally {
+            directory.delete();
+        }
+    }
+
+    private static void awaitFiles(File directory, int files) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (directory.list().length < files && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(directory.list().length, is(files));
+    }
+}
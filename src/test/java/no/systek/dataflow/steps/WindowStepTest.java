@@ -0,0 +1,86 @@
+package no.systek.dataflow.steps;
+
+import no.systek.dataflow.AbstractStepTest;
+import no.systek.dataflow.Step;
+import no.systek.dataflow.Steps;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class WindowStepTest extends AbstractStepTest {
+
+    @Test
+    public void tumblingWindowPushesOnCountAndTime() {
+        Step<Integer, List<Integer>> window = Steps.newTumblingWindow(10, 50, TimeUnit.MILLISECONDS);
+        window.dependsOn(Steps.<Integer, Integer>newParallelListStep(in -> in).output());
+        List<List<Integer>> windows = stepExecutor.executeList(window,
+            IntStream.range(0, 25).boxed().collect(Collectors.toList()));
+        assertThat(windows.stream().map(List::size).collect(Collectors.toList()), is(Arrays.asList(10, 10, 5)));
+
+        // the graph does not become idle while the producer waits, only the max latency pushes the first item
+        List<List<Integer>> timedWindows = Collections.synchronizedList(new ArrayList<>());
+        Step<Integer, List<Integer>> timed = Steps.newTumblingWindow(10, 50, TimeUnit.MILLISECONDS);
+        timed.dependsOn(waitingProducer(timedWindows, 0, 1).output());
+        stepExecutor.execute(timed, new Object(), timedWindows::add);
+        assertThat(timedWindows, is(Arrays.asList(Arrays.asList(0), Arrays.asList(1))));
+    }
+
+    @Test
+    public void slidingWindowPushesEverySlide() {
+        Step<Integer, List<Integer>> window = Steps.newSlidingWindow(4, 2, 1, TimeUnit.SECONDS);
+        window.dependsOn(Steps.<Integer, Integer>newParallelListStep(in -> in).output());
+        assertThat(stepExecutor.executeList(window, IntStream.range(0, 10).boxed().collect(Collectors.toList())),
+            is(Arrays.asList(
+                Arrays.asList(0, 1),
+                Arrays.asList(0, 1, 2, 3),
+                Arrays.asList(2, 3, 4, 5),
+                Arrays.asList(4, 5, 6, 7),
+                Arrays.asList(6, 7, 8, 9))));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void slidingWindowSlideMustNotExceedSize() {
+        Steps.newSlidingWindow(2, 3, 1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void sessionWindowPushesAfterGap() {
+        List<List<Integer>> windows = Collections.synchronizedList(new ArrayList<>());
+        Step<Integer, List<Integer>> window = Steps.newSessionWindow(50, 10_000, TimeUnit.MILLISECONDS);
+        window.dependsOn(waitingProducer(windows, 0, 1, 2).output());
+        stepExecutor.execute(window, new Object(), windows::add);
+        assertThat(windows, is(Arrays.asList(Arrays.asList(0, 1), Arrays.asList(2))));
+    }
+
+    /**
+     * Produces the outputs, and before the last one waits for up to 5 seconds until the window has pushed the
+     * outputs so far. Its task keeps running meanwhile, so only a time trigger can push them.
+     */
+    private static Step<Object, Integer> waitingProducer(List<?> windows, Integer... outputs) {
+        return new Step<Object, Integer>(1) {
+            @Override
+            protected void run(Object input, Consumer<Integer> onResult) {
+                for (int i = 0; i < outputs.length; i++) {
+                    if (i == outputs.length - 1) {
+                        long deadline = System.currentTimeMillis() + 5000;
+                        while (windows.isEmpty() && System.currentTimeMillis() < deadline) {
+                            sleep(10);
+                        }
+                    }
+                    onResult.accept(outputs[i]);
+                }
+            }
+        };
+    }
+
+}